@@ -16,19 +16,27 @@
 
 package com.palantir.refreshable.benchmarks;
 
+import com.palantir.refreshable.Disposable;
 import com.palantir.refreshable.Refreshable;
 import com.palantir.refreshable.SettableRefreshable;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.BenchmarkMode;
 import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
 import org.openjdk.jmh.annotations.Measurement;
 import org.openjdk.jmh.annotations.Mode;
 import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
 import org.openjdk.jmh.annotations.Scope;
 import org.openjdk.jmh.annotations.State;
 import org.openjdk.jmh.annotations.Threads;
 import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
 import org.openjdk.jmh.runner.Runner;
 import org.openjdk.jmh.runner.options.Options;
 import org.openjdk.jmh.runner.options.OptionsBuilder;
@@ -63,6 +71,60 @@ public class RefreshableBenchmark {
         });
     }
 
+    /**
+     * Updates the refreshable while {@link #slowMapDuringUpdate_map} registrations are running concurrently, which
+     * measures how long updates are blocked by registering slow mappings.
+     */
+    @Benchmark
+    @Group("slowMapDuringUpdate")
+    @GroupThreads(1)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public SettableRefreshable<String> slowMapDuringUpdate_update(SlowMapState state, UpdateState updateState) {
+        updateState.flip = !updateState.flip;
+        state.refreshable.update(updateState.flip ? "updated" : "initial");
+        return state.refreshable;
+    }
+
+    /**
+     * Registers a slow subscriber and disposes of it again, so that the number of registrations the updates propagate
+     * to stays fixed at the children registered by {@link SlowMapState#setUp} for the whole run.
+     */
+    @Benchmark
+    @Group("slowMapDuringUpdate")
+    @GroupThreads(3)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void slowMapDuringUpdate_map(SlowMapState state, Blackhole blackhole) {
+        Disposable registration = state.refreshable.subscribe(value -> {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            blackhole.consume(value.length());
+        });
+        registration.dispose();
+    }
+
+    @State(Scope.Group)
+    public static class SlowMapState {
+        private static final int CHILDREN = 16;
+
+        final SettableRefreshable<String> refreshable = Refreshable.create("initial");
+        final List<Refreshable<Integer>> children = new ArrayList<>(CHILDREN);
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            for (int i = 0; i < CHILDREN; i++) {
+                children.add(refreshable.map(String::length));
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class UpdateState {
+        boolean flip;
+    }
+
     public static void main(String[] _args) throws Exception {
         Options opt = new OptionsBuilder()
                 .include(RefreshableBenchmark.class.getSimpleName())
@@ -0,0 +1,130 @@
+/*
+ * (c) Copyright 2021 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.refreshable.benchmarks;
+
+import com.palantir.refreshable.Refreshable;
+import com.palantir.refreshable.SettableRefreshable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares chains of five maps, such as {@code root.map(Config::server).map(Server::port)...}, with and without map
+ * fusion. Only the last refreshable of each chain is held, so once the fused intermediate refreshables have been
+ * garbage collected during setup, each update recomputes a single refreshable per chain rather than five. The
+ * {@code Unfused} benchmarks run in a fork with fusion disabled.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 4, time = 3)
+@Measurement(iterations = 4, time = 3)
+@Threads(1)
+@Fork(value = 1)
+@SuppressWarnings("checkstyle:DesignForExtension")
+public class RefreshableMapFusionBenchmark {
+
+    private static final String FIRST = "first";
+    private static final String SECOND = "second";
+    private static final int DEPTH = 5;
+    private static final String DISABLE_FUSION = "-Dcom.palantir.refreshable.disableMapFusion=true";
+
+    @Param({"1", "100"})
+    public int chains;
+
+    private SettableRefreshable<String> refreshable;
+
+    // Held to prevent the chains from being garbage collected, unlike their intermediate refreshables.
+    private List<Refreshable<Integer>> leaves;
+
+    private boolean flip;
+
+    @Setup
+    public void setup() throws InterruptedException {
+        refreshable = Refreshable.create(FIRST);
+        leaves = new ArrayList<>(chains);
+        for (int i = 0; i < chains; i++) {
+            leaves.add(chain(refreshable));
+        }
+        // Registrations of collected refreshables are pruned by later updates, once the garbage collector clears them.
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+    }
+
+    @Benchmark
+    public SettableRefreshable<String> updateFused() {
+        return update();
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = DISABLE_FUSION)
+    public SettableRefreshable<String> updateUnfused() {
+        return update();
+    }
+
+    @Benchmark
+    public Refreshable<Integer> mapFused() {
+        return chain(refreshable);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = DISABLE_FUSION)
+    public Refreshable<Integer> mapUnfused() {
+        return chain(refreshable);
+    }
+
+    private SettableRefreshable<String> update() {
+        flip = !flip;
+        refreshable.update(flip ? SECOND : FIRST);
+        return refreshable;
+    }
+
+    /** Every map changes its result on each update, so none of them ends the propagation early. */
+    private static Refreshable<Integer> chain(Refreshable<String> root) {
+        Refreshable<Integer> mapped = root.map(String::length);
+        for (int i = 1; i < DEPTH; i++) {
+            mapped = mapped.map(value -> value + 1);
+        }
+        return mapped;
+    }
+
+    public static void main(String[] _args) throws Exception {
+        Options opt = new OptionsBuilder()
+                .include(RefreshableMapFusionBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(opt).run();
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * (c) Copyright 2021 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.refreshable.benchmarks;
+
+import com.palantir.refreshable.Refreshable;
+import com.palantir.refreshable.SettableRefreshable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the cost of fanning an update out to mapped children. Run with the GC profiler ({@code -prof gc}, enabled
+ * by {@link #main}) to see the allocation rate per update: values are preallocated and the mapping functions don't
+ * allocate, so {@code gc.alloc.rate.norm} reflects only allocations made by the refreshable itself.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 4, time = 3)
+@Measurement(iterations = 4, time = 3)
+@Threads(1)
+@Fork(value = 1)
+@SuppressWarnings("checkstyle:DesignForExtension")
+public class RefreshableUpdateBenchmark {
+
+    private static final String FIRST = "first";
+    private static final String SECOND = "second";
+
+    @Param({"1", "100", "5000"})
+    public int children;
+
+    private SettableRefreshable<String> refreshable;
+
+    // Held to prevent the mapped children from being garbage collected.
+    private List<Refreshable<String>> mapped;
+
+    private boolean flip;
+
+    @Setup
+    public void setup() {
+        refreshable = Refreshable.create(FIRST);
+        mapped = new ArrayList<>(children);
+        for (int i = 0; i < children; i++) {
+            mapped.add(refreshable.map(value -> value));
+        }
+    }
+
+    @Benchmark
+    public SettableRefreshable<String> update() {
+        flip = !flip;
+        refreshable.update(flip ? SECOND : FIRST);
+        return refreshable;
+    }
+
+    public static void main(String[] _args) throws Exception {
+        Options opt = new OptionsBuilder()
+                .include(RefreshableUpdateBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(opt).run();
+    }
+}
@@ -17,24 +17,54 @@
 package com.palantir.refreshable;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.collect.ImmutableList;
+import com.google.common.collect.MapMaker;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.palantir.logsafe.Preconditions;
 import com.palantir.logsafe.SafeArg;
 import com.palantir.logsafe.UnsafeArg;
+import com.palantir.logsafe.exceptions.SafeIllegalStateException;
 import com.palantir.logsafe.exceptions.SafeRuntimeException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.lang.ref.Cleaner;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
-import java.util.Objects;
-import java.util.Optional;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -55,11 +85,115 @@ final class DefaultRefreshable<T> implements SettableRefreshable<T> {
 
     private static final int WARN_THRESHOLD = 1000;
 
+    /**
+     * Receives the references of children derived using {@link #map} once they've been garbage collected, and of their
+     * parents, see {@link #drainCollectedChildren}. Registrations of collected children are pruned by the threads using
+     * refreshables, rather than a single cleaner thread which may fall behind when many are created and discarded.
+     */
+    private static final ReferenceQueue<DefaultRefreshable<?>> COLLECTED_REFRESHABLES = new ReferenceQueue<>();
+
+    /** Bounds the work of each {@link #drainCollectedChildren} call, so that no caller is delayed for long. */
+    private static final int MAX_DRAINED_COLLECTED_CHILDREN = 1024;
+
+    private static final LongAdder PENDING_DEAD_CHILDREN = new LongAdder();
+    private static final LongAdder PRUNED_DEAD_CHILDREN = new LongAdder();
+
+    /**
+     * Parents with collected children which haven't been pruned yet. Holding their references ensures they're enqueued
+     * if the parent is collected too, so that its pending children are no longer counted.
+     */
+    private static final Set<ParentRef> PARENTS_WITH_DEAD_CHILDREN = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Private locks of settable refreshables implemented elsewhere, see {@link #compareAndUpdateLock}. Weakly keyed by
+     * identity, so that refreshables are still collected.
+     */
+    private static final ConcurrentMap<SettableRefreshable<?>, Object> COMPARE_AND_UPDATE_LOCKS =
+            new MapMaker().weakKeys().makeMap();
+
+    private static final ChildSubscriber<?>[] NO_CHILDREN = new ChildSubscriber<?>[0];
+    private static final SideEffectSubscriber<?>[] NO_SUBSCRIBERS = new SideEffectSubscriber<?>[0];
+
+    /**
+     * Number of times {@link #map} and {@link #subscribe} compute an initial value outside of the lock before giving
+     * up and holding the lock, which bounds the work wasted when updates keep racing with registration.
+     */
+    private static final int MAX_OPTIMISTIC_REGISTRATION_ATTEMPTS = 3;
+
+    /** Number of times {@link #snapshot} busy-waits for a propagation to finish before yielding the processor. */
+    private static final int SNAPSHOT_SPINS_BEFORE_YIELDING = 64;
+
+    /**
+     * Whether {@link #map} fuses chains of maps into a single refreshable, see {@link #fuse}. Only disabled to compare
+     * against unfused chains, or if fusion is suspected of misbehaving.
+     */
+    private static final boolean FUSE_MAPS = !Boolean.getBoolean("com.palantir.refreshable.disableMapFusion");
+
+    /** Passed as the expected value of unconditional updates, see {@link #accepts}. */
+    private static final Object ANY_VALUE = new Object();
+
+    /** Value of lazily derived refreshables until they're first read, which is never returned, see {@link #lazyMap}. */
+    private static final Object UNRESOLVED = new Object();
+
+    /** Returned by {@link FusedMaps#apply} if the child doesn't need to be updated. */
+    private static final Object UNCHANGED = new Object();
+
+    /**
+     * Returned by {@link #publish} for updates which were propagated by the time it returns, so that they don't need to
+     * allocate a future. Never returned to callers, who could otherwise complete it exceptionally.
+     */
+    private static final CompletableFuture<Void> PROPAGATED = CompletableFuture.completedFuture(null);
+
+    /** The batch the current thread is running, see {@link #batch}. */
+    private static final ThreadLocal<Batch> ACTIVE_BATCH = new ThreadLocal<>();
+
+    /** Allows {@link LatestWinsUpdates} to publish values conditionally without holding a lock. */
+    private static final VarHandle CURRENT;
+
+    /** Allows waiters to install the {@link SideState#changeSignal} without holding a lock. */
+    private static final VarHandle CHANGE_SIGNAL;
+
+    /** Allows {@link #map(Object, Function)} to install the {@link SideState#keyedChildren} without holding a lock. */
+    private static final VarHandle KEYED_CHILDREN;
+
+    /** Allows the {@link #sideState} to be allocated on first use, see {@link #sideState()}. */
+    private static final VarHandle SIDE_STATE;
+
+    /** Allows the workers of a parallel {@link Propagation} to claim refreshables without holding a lock. */
+    private static final VarHandle GENERATION;
+
+    /** Allow the subscriber holders to be allocated on first use, see {@link #children()}. */
+    private static final VarHandle CHILDREN;
+    private static final VarHandle ORDERED_SUBSCRIBERS;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            CURRENT = lookup.findVarHandle(DefaultRefreshable.class, "current", Versioned.class);
+            CHANGE_SIGNAL = lookup.findVarHandle(SideState.class, "changeSignal", CompletableFuture.class);
+            KEYED_CHILDREN = lookup.findVarHandle(SideState.class, "keyedChildren", ConcurrentMap.class);
+            GENERATION = lookup.findVarHandle(DefaultRefreshable.class, "generation", long.class);
+            SIDE_STATE = lookup.findVarHandle(DefaultRefreshable.class, "sideState", SideState.class);
+            CHILDREN = lookup.findVarHandle(DefaultRefreshable.class, "children", Subscribers.class);
+            ORDERED_SUBSCRIBERS =
+                    lookup.findVarHandle(DefaultRefreshable.class, "orderedSubscribers", Subscribers.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * Refreshables derived from this one using {@link #map} or {@link #combine}, in registration order. Every derived
+     * refreshable in the tree is recomputed before any side-effect subscriber runs, see {@link Propagation}. Null until
+     * the first is registered, as most refreshables are leaves.
+     */
+    @Nullable
+    private volatile Subscribers<ChildSubscriber<? super T>> children;
+
     /** Subscribers are updated in deterministic order based on registration order. This prevents a class
      * of bugs where a listener on a refreshable uses a refreshable mapped from itself, and guarantees the child
-     * mappings will be up-to-date before the listener is executed, as long as the input mapping occurred before
-     * the subscription. While we strongly recommend against this kind of dependency, it's complicated to detect
-     * in large projects with layers of indirection.
+     * mappings will be up-to-date before the listener is executed. While we strongly recommend against this kind of
+     * dependency, it's complicated to detect in large projects with layers of indirection.
      * <p>
      * Consider the following:
      * <pre>{@code
@@ -71,72 +205,355 @@ final class DefaultRefreshable<T> implements SettableRefreshable<T> {
      * });
      * }</pre>
      */
-    private final Set<Consumer<? super T>> orderedSubscribers = Collections.synchronizedSet(new LinkedHashSet<>());
+    @Nullable
+    private volatile Subscribers<SideEffectSubscriber<? super T>> orderedSubscribers;
 
     private final RootSubscriberTracker rootSubscriberTracker;
-    private volatile T current;
-    private final Lock writeLock;
-    private final Lock readLock;
+    /**
+     * The value returned by {@link #current} and its {@link #version}, replaced as a whole on each change so that both
+     * can be read together with a single volatile read.
+     */
+    private volatile Versioned<T> current;
+
+    /**
+     * Incremented after each change is propagated, while holding the write lock. Registration reads this before
+     * computing an initial value without the lock, and only completes if it is unchanged once the lock is acquired,
+     * so it may wrap around. Unlike {@link #version}, this only changes once deferred updates have been propagated.
+     */
+    private volatile int propagations;
+
+    /** State which most refreshables never use. Null until it's first needed, see {@link #sideState()}. */
+    @Nullable
+    private volatile SideState<T> sideState;
 
     /**
      * Ensures that in a long chain of mapped refreshables, intermediate ones can't be garbage collected if derived
-     * refreshables are still in use. Empty for root refreshables only.
+     * refreshables are still in use. Null for root refreshables only.
      */
+    @Nullable
     @SuppressWarnings("unused")
-    private final Optional<?> strongParentReference;
+    private final Object strongParentReference;
+
+    /** Zero for root refreshables, otherwise one more than the depth of the parent. */
+    private final int depth;
+
+    /**
+     * The generation of the {@link Propagation} which most recently recomputed this refreshable. Only accessed by the
+     * thread propagating an update through the tree, while holding the write lock of the tree, or by its workers
+     * through {@link #GENERATION}.
+     */
+    private long generation;
+
+    /** Decides whether a new value is propagated, see {@link #setIfChanged}. */
+    private final Equivalence<? super T> equivalence;
 
     DefaultRefreshable(T current) {
-        this(current, Optional.empty(), new RootSubscriberTracker());
+        this(current, null, 0, new RootSubscriberTracker(), null, Equivalence.equality());
     }
 
-    private DefaultRefreshable(T current, Optional<?> strongParentReference, RootSubscriberTracker tracker) {
-        this.current = current;
+    private DefaultRefreshable(
+            T current,
+            @Nullable Object strongParentReference,
+            int depth,
+            RootSubscriberTracker tracker,
+            @Nullable SideState<T> sideState,
+            Equivalence<? super T> equivalence) {
+        this.current = new Versioned<>(current, 0);
         this.strongParentReference = strongParentReference;
+        this.depth = depth;
         this.rootSubscriberTracker = tracker;
-        ReadWriteLock lock = new ReentrantReadWriteLock();
-        writeLock = lock.writeLock();
-        readLock = lock.readLock();
+        this.sideState = sideState;
+        this.equivalence = equivalence;
+    }
+
+    /** Creates a root refreshable with the options of the given builder, see {@link RefreshableBuilder#build}. */
+    @SuppressWarnings("unchecked") // the monotonic version is only applied to values of the root
+    static <T> DefaultRefreshable<T> root(RefreshableBuilder<T> options) {
+        T initial = options.initial();
+        Executor executor = options.executor();
+        DeferredUpdates<T> deferredUpdates = null;
+        if (executor != null) {
+            deferredUpdates =
+                    new AsyncUpdates<>(initial, executor, options.maxPendingUpdates(), options.overflowPolicy());
+        } else if (options.latestWins()) {
+            deferredUpdates = new LatestWinsUpdates<>(initial);
+        }
+        RootSubscriberTracker tracker = new RootSubscriberTracker(
+                List.of(),
+                options.subscriberExecutor(),
+                options.awaitSubscribers(),
+                options.fanOutPool(),
+                (ToLongFunction<Object>) options.monotonicVersion());
+        SideState<T> sideState = deferredUpdates == null ? null : new SideState<>(deferredUpdates, null);
+        return new DefaultRefreshable<>(initial, null, 0, tracker, sideState, options.equivalence());
+    }
+
+    private <R> DefaultRefreshable<R> createChild(R initialChildValue, Equivalence<? super R> childEquivalence) {
+        return new DefaultRefreshable<>(
+                initialChildValue, this, depth + 1, rootSubscriberTracker, null, childEquivalence);
+    }
+
+    /** Returns the {@link SideState}, allocating it if this refreshable didn't need it so far. */
+    private SideState<T> sideState() {
+        SideState<T> existing = sideState;
+        if (existing != null) {
+            return existing;
+        }
+        SIDE_STATE.compareAndSet(this, null, new SideState<T>(null, null));
+        return Preconditions.checkNotNull(sideState, "sideState");
+    }
+
+    @Nullable
+    private DeferredUpdates<T> deferredUpdates() {
+        SideState<T> side = sideState;
+        return side == null ? null : side.deferredUpdates;
     }
 
-    private <R> DefaultRefreshable<R> createChild(R initialChildValue) {
-        Optional<?> parentReference = Optional.of(this);
-        return new DefaultRefreshable<>(initialChildValue, parentReference, rootSubscriberTracker);
+    @Nullable
+    private LazyDerivation<?, T> lazyDerivation() {
+        SideState<T> side = sideState;
+        return side == null ? null : side.lazyDerivation;
+    }
+
+    /** Whether anyone is waiting for the next change, see {@link #nextAsync}. */
+    private boolean awaitingChange() {
+        SideState<T> side = sideState;
+        return side != null && side.changeSignal != null;
     }
 
     /** Updates the current value and sends the specified value to all subscribers. */
     @Override
+    @SuppressWarnings("FutureReturnValueIgnored")
     public void update(T value) {
+        publish(ANY_VALUE, value);
+    }
+
+    @Override
+    public CompletableFuture<Void> updateAsync(T value) {
+        CompletableFuture<Void> published = publish(ANY_VALUE, value);
+        return published == null || published == PROPAGATED ? CompletableFuture.completedFuture(null) : published;
+    }
+
+    @Override
+    public boolean compareAndUpdate(T expected, T next) {
+        return publish(expected, next) != null;
+    }
+
+    @Override
+    public T updateAndGet(UnaryOperator<T> function) {
+        Batch batch = ACTIVE_BATCH.get();
+        return batch == null ? SettableRefreshable.super.updateAndGet(function) : batch.updateAndGet(this, function);
+    }
+
+    /**
+     * Publishes the value if this refreshable {@link #accepts} it, or stages it if the current thread is running a
+     * {@link #batch}. Returns a future which completes once the value has been propagated, or null if it was rejected.
+     */
+    @Nullable
+    private CompletableFuture<Void> publish(Object expected, T value) {
+        Batch batch = ACTIVE_BATCH.get();
+        return batch == null ? publishNow(expected, value) : batch.stage(this, expected, value);
+    }
+
+    @Nullable
+    private CompletableFuture<Void> publishNow(Object expected, T value) {
+        DeferredUpdates<T> deferredUpdates = deferredUpdates();
+        if (deferredUpdates != null) {
+            return deferredUpdates.publish(this, expected, value);
+        }
+        return propagate(expected, value) ? PROPAGATED : null;
+    }
+
+    /**
+     * Returns whether the value may replace the previous one: the previous value must be {@code expected}, unless that
+     * is {@link #ANY_VALUE}, and the value must not be older according to {@link RefreshableBuilder#monotonicVersion}.
+     */
+    private boolean accepts(T previous, Object expected, T value) {
+        if (expected != ANY_VALUE && expected != previous) {
+            return false;
+        }
+        ToLongFunction<Object> monotonicVersion = rootSubscriberTracker.monotonicVersion;
+        return monotonicVersion == null
+                || monotonicVersion.applyAsLong(value) >= monotonicVersion.applyAsLong(previous);
+    }
+
+    /**
+     * Propagates the value through the tree derived from this refreshable, unless it isn't {@link #accepts accepted}
+     * in which case this returns false. The write lock is held throughout, so that updates are propagated one at a
+     * time and subscribers observe them in order. Rejected updates are usually detected before acquiring it.
+     */
+    private boolean propagate(Object expected, T value) {
+        if (!accepts(propagatedValue(), expected, value)) {
+            return false;
+        }
+        CompletableFuture<Void> dispatched = null;
+        Lock writeLock = rootSubscriberTracker.writeLock;
         writeLock.lock();
         try {
-            if (!Objects.equals(current, value)) {
-                current = value;
-
-                // iterating over a copy allows subscriptions to be disposed within an update without causing
-                // ConcurrentModificationExceptions.
-                ImmutableList.copyOf(orderedSubscribers).forEach(subscriber -> subscriber.accept(value));
+            if (!accepts(propagatedValue(), expected, value)) {
+                return false;
+            }
+            rootSubscriberTracker.beginChange();
+            try {
+                if (setIfChanged(value)) {
+                    dispatched = rootSubscriberTracker.runPropagation(this, value);
+                }
+            } finally {
+                rootSubscriberTracker.endChange();
             }
         } finally {
             writeLock.unlock();
         }
+        drainCollectedChildren();
+        if (dispatched != null && rootSubscriberTracker.awaitSubscribers) {
+            // Waits without holding the lock, so that subscribers may read and subscribe to the tree.
+            dispatched.join();
+        }
+        return true;
+    }
+
+    /**
+     * Recomputes this derived refreshable as part of a propagation, recording it if its value changed. No lock is
+     * taken, as the propagation already holds the write lock of the tree, and claimed this refreshable for one thread.
+     */
+    private void derive(T value, Propagation propagation) {
+        if (setIfChanged(value)) {
+            propagation.changed(this, value);
+        }
+    }
+
+    /**
+     * Publishes the value to subscribers registered from now on, returning false if it's equivalent to the previous
+     * value. Must be called while holding the write lock of the tree, so that the subscribers registered at this point
+     * are exactly those which haven't observed the new value.
+     */
+    @SuppressWarnings("NonAtomicVolatileUpdate") // propagations is only written by one thread per propagation
+    private boolean setIfChanged(T value) {
+        if (equivalence.equivalent(propagatedValue(), value)) {
+            return false;
+        }
+        DeferredUpdates<T> deferredUpdates = deferredUpdates();
+        if (deferredUpdates == null) {
+            current = current.next(value);
+            signalChange();
+        } else {
+            deferredUpdates.propagated = value;
+        }
+        propagations++;
+        return true;
+    }
+
+    @Override
+    public CompletableFuture<Versioned<T>> nextAsync(long version) {
+        Versioned<T> latest = currentWithVersion();
+        if (latest.version() > version) {
+            return CompletableFuture.completedFuture(latest);
+        }
+        CompletableFuture<Void> signal = changeSignal();
+        latest = currentWithVersion();
+        if (latest.version() > version) {
+            return CompletableFuture.completedFuture(latest);
+        }
+        // Continues on another thread, rather than on the updating thread while it holds the write lock.
+        return signal.thenComposeAsync(_ignored -> nextAsync(version));
+    }
+
+    @Override
+    public Versioned<T> awaitNext(long version) throws InterruptedException {
+        while (true) {
+            Versioned<T> latest = currentWithVersion();
+            if (latest.version() > version) {
+                return latest;
+            }
+            CompletableFuture<Void> signal = changeSignal();
+            if (currentWithVersion().version() <= version) {
+                try {
+                    signal.get();
+                } catch (ExecutionException e) {
+                    throw new SafeIllegalStateException("Change signals are never completed exceptionally", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the signal which completes the next time {@link #current} changes. Callers must read the current value
+     * again after this returns, as it may have changed before the signal was installed.
+     */
+    private CompletableFuture<Void> changeSignal() {
+        SideState<T> side = sideState();
+        while (true) {
+            CompletableFuture<Void> signal = side.changeSignal;
+            if (signal != null) {
+                return signal;
+            }
+            CompletableFuture<Void> fresh = new CompletableFuture<>();
+            if (CHANGE_SIGNAL.compareAndSet(side, null, fresh)) {
+                return fresh;
+            }
+        }
+    }
+
+    /** Wakes everyone waiting for a change, which must be called after each write to {@link #current}. */
+    @SuppressWarnings("unchecked")
+    private void signalChange() {
+        SideState<T> side = sideState;
+        if (side != null && side.changeSignal != null) {
+            CompletableFuture<Void> signal = (CompletableFuture<Void>) CHANGE_SIGNAL.getAndSet(side, null);
+            if (signal != null) {
+                signal.complete(null);
+            }
+        }
     }
 
     @Override
     public T current() {
+        return currentWithVersion().value();
+    }
+
+    @Override
+    public long version() {
+        return currentWithVersion().version();
+    }
+
+    @Override
+    public Versioned<T> currentWithVersion() {
+        LazyDerivation<?, T> derivation = lazyDerivation();
+        if (derivation != null && derivation.dirty) {
+            derivation.resolve(this);
+        }
         return current;
     }
 
+    /**
+     * Returns the value most recently sent to subscribers, which new subscriptions are initialized with. This only
+     * differs from {@link #current} while a deferred update is waiting to be propagated.
+     */
+    private T propagatedValue() {
+        DeferredUpdates<T> deferredUpdates = deferredUpdates();
+        return deferredUpdates == null ? currentWithVersion().value() : deferredUpdates.propagated;
+    }
+
     @Override
     public Disposable subscribe(Consumer<? super T> throwingSubscriber) {
-        readLock.lock();
-        try {
-            SideEffectSubscriber<? super T> trackedSubscriber =
-                    rootSubscriberTracker.newSideEffectSubscriber(throwingSubscriber, this);
+        return subscribeTracked(rootSubscriberTracker.newSideEffectSubscriber(throwingSubscriber, this));
+    }
 
-            Disposable disposable = subscribeToSelf(trackedSubscriber);
-            return new SubscribeDisposable(disposable, rootSubscriberTracker, trackedSubscriber);
-        } finally {
-            readLock.unlock();
-        }
+    @Override
+    public Disposable subscribe(Consumer<? super T> throwingSubscriber, Executor executor) {
+        return subscribeTracked(
+                rootSubscriberTracker.newDispatchingSubscriber(throwingSubscriber, this, executor, false));
+    }
+
+    @Override
+    public Disposable subscribeLatest(Consumer<? super T> throwingSubscriber, Executor executor) {
+        return subscribeTracked(
+                rootSubscriberTracker.newDispatchingSubscriber(throwingSubscriber, this, executor, true));
+    }
+
+    private Disposable subscribeTracked(SideEffectSubscriber<? super T> trackedSubscriber) {
+        Disposable disposable = subscribeToSelf(trackedSubscriber);
+        return new SubscribeDisposable(disposable, rootSubscriberTracker, trackedSubscriber);
     }
 
     private static final class SubscribeDisposable implements Disposable {
@@ -156,16 +573,55 @@ final class DefaultRefreshable<T> implements SettableRefreshable<T> {
         @Override
         public void dispose() {
             delegate.dispose();
+            trackedSubscriber.cancel();
             rootSubscriberTracker.deleteReferenceTo(trackedSubscriber);
         }
     }
 
-    @GuardedBy("readLock")
-    private Disposable subscribeToSelf(Consumer<? super T> subscriber) {
+    /**
+     * Sends the current value to the subscriber without holding the lock, so that slow subscribers don't block updates,
+     * then registers it for subsequent updates. If an update was propagated in the meantime the subscriber is sent the
+     * newer value before registration is retried, so it observes values in order and never misses the latest one.
+     */
+    private Disposable subscribeToSelf(SideEffectSubscriber<? super T> subscriber) {
+        Lock readLock = rootSubscriberTracker.readLock;
+        int observedVersion = propagations;
+        T delivered = propagatedValue();
+        subscriber.accept(delivered);
+        for (int attempt = 1; attempt < MAX_OPTIMISTIC_REGISTRATION_ATTEMPTS; attempt++) {
+            readLock.lock();
+            try {
+                if (propagations == observedVersion) {
+                    return register(subscriber);
+                }
+            } finally {
+                readLock.unlock();
+            }
+            observedVersion = propagations;
+            T latest = propagatedValue();
+            if (!equivalence.equivalent(delivered, latest)) {
+                delivered = latest;
+                subscriber.accept(latest);
+            }
+        }
+        readLock.lock();
+        try {
+            T latest = propagatedValue();
+            if (!equivalence.equivalent(delivered, latest)) {
+                subscriber.accept(latest);
+            }
+            return register(subscriber);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /** Must be called while holding the read lock, so that the subscriber doesn't miss an update. */
+    private Disposable register(SideEffectSubscriber<? super T> subscriber) {
         preSubscribeLogging();
-        orderedSubscribers.add(subscriber);
-        subscriber.accept(current);
-        return new DefaultDisposable(orderedSubscribers, subscriber);
+        Subscribers<SideEffectSubscriber<? super T>> subscribers = orderedSubscribers();
+        subscribers.add(subscriber);
+        return new DefaultDisposable(subscribers, subscriber);
     }
 
     /**
@@ -180,20 +636,20 @@ final class DefaultRefreshable<T> implements SettableRefreshable<T> {
      * }</pre>
      */
     private static final class DefaultDisposable implements Disposable {
-        // The subscribers set holds a reference to the subscriber, if either reference is
+        // The subscribers array holds a reference to the subscriber, if either reference is
         // collected, the other isn't meaningful to track either.
-        private final WeakReference<Set<? extends Consumer<?>>> subscribersRef;
-        private final WeakReference<Consumer<?>> subscriberRef;
+        private final WeakReference<Subscribers<?>> subscribersRef;
+        private final WeakReference<Object> subscriberRef;
 
-        DefaultDisposable(Set<? extends Consumer<?>> subscribers, Consumer<?> subscriber) {
+        DefaultDisposable(Subscribers<?> subscribers, Object subscriber) {
             this.subscribersRef = new WeakReference<>(subscribers);
             this.subscriberRef = new WeakReference<>(subscriber);
         }
 
         @Override
         public void dispose() {
-            Set<? extends Consumer<?>> subscribers = subscribersRef.get();
-            Consumer<?> subscriber = subscriberRef.get();
+            Subscribers<?> subscribers = subscribersRef.get();
+            Object subscriber = subscriberRef.get();
             subscribersRef.clear();
             subscriberRef.clear();
             if (subscribers != null && subscriber != null) {
@@ -202,112 +658,2243 @@ final class DefaultRefreshable<T> implements SettableRefreshable<T> {
         }
     }
 
+    /**
+     * Applies the function without holding the lock, so that slow mappings don't block updates, and only registers the
+     * child if no update was propagated in the meantime. Otherwise the initial value may be stale, so it's recomputed.
+     */
     @Override
     public <R> Refreshable<R> map(Function<? super T, R> function) {
-        readLock.lock();
-        try {
-            R initialChildValue = function.apply(current);
-            DefaultRefreshable<R> child = createChild(initialChildValue);
+        return map(function, Equivalence.equality());
+    }
 
-            MapSubscriber<? super T, R> mapSubscriber = new MapSubscriber<>(function, child);
-            Disposable cleanUp = subscribeToSelf(mapSubscriber);
-            REFRESHABLE_CLEANER.register(child, cleanUp::dispose);
-            return child;
-        } finally {
-            readLock.unlock();
-        }
+    @Override
+    public <R> Refreshable<R> map(Function<? super T, R> function, Equivalence<? super R> childEquivalence) {
+        return mapWith(function, childEquivalence);
     }
 
-    private void preSubscribeLogging() {
-        if (log.isWarnEnabled()) {
-            int subscribers = orderedSubscribers.size() + 1;
-            if (subscribers > WARN_THRESHOLD) {
-                log.warn(
-                        "Refreshable {} has an excessive number of subscribers: {} and is likely leaking memory. "
-                                + "The current warning threshold is {}.",
-                        SafeArg.of("refreshableIdentifier", System.identityHashCode(this)),
-                        SafeArg.of("numSubscribers", subscribers),
-                        SafeArg.of("warningThreshold", WARN_THRESHOLD),
-                        new SafeRuntimeException("location"));
-            } else if (log.isDebugEnabled()) {
-                log.debug(
-                        "Added a subscription to refreshable {} resulting in {} subscriptions",
-                        SafeArg.of("refreshableIdentifier", System.identityHashCode(this)),
-                        SafeArg.of("numSubscribers", subscribers));
+    /**
+     * Lookups don't take any locks. If several threads derive a refreshable for the same key concurrently, only one is
+     * kept, and the others are garbage collected like any unreferenced refreshable.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public <R> Refreshable<R> map(Object key, Function<? super T, R> function) {
+        Preconditions.checkNotNull(key, "key");
+        ConcurrentMap<Object, WeakReference<Refreshable<?>>> keyed = keyedChildren();
+        while (true) {
+            WeakReference<Refreshable<?>> existing = keyed.get(key);
+            Refreshable<?> existingChild = existing == null ? null : existing.get();
+            if (existingChild != null) {
+                return (Refreshable<R>) existingChild;
+            }
+            Refreshable<R> child = map(function);
+            WeakReference<Refreshable<?>> childRef = new WeakReference<>(child);
+            boolean installed = existing == null
+                    ? keyed.putIfAbsent(key, childRef) == null
+                    : keyed.replace(key, existing, childRef);
+            if (installed) {
+                REFRESHABLE_CLEANER.register(child, () -> keyed.remove(key, childRef));
+                return child;
             }
         }
     }
 
-    /**
-     * Purely for GC purposes - this class holds a reference to its parent refreshable. Instances of this class are
-     * themselves tracked by the {@link RootSubscriberTracker}.
-     */
-    private static class SideEffectSubscriber<T> implements Consumer<T> {
-        private final Consumer<T> unsafeSubscriber;
+    private ConcurrentMap<Object, WeakReference<Refreshable<?>>> keyedChildren() {
+        SideState<T> side = sideState();
+        ConcurrentMap<Object, WeakReference<Refreshable<?>>> keyed = side.keyedChildren;
+        if (keyed != null) {
+            return keyed;
+        }
+        KEYED_CHILDREN.compareAndSet(side, null, new ConcurrentHashMap<>());
+        return Preconditions.checkNotNull(side.keyedChildren, "keyedChildren");
+    }
 
-        @SuppressWarnings("unused")
-        private final Refreshable<?> strongParentReference;
+    private Subscribers<ChildSubscriber<? super T>> children() {
+        Subscribers<ChildSubscriber<? super T>> existing = children;
+        if (existing != null) {
+            return existing;
+        }
+        CHILDREN.compareAndSet(this, null, new Subscribers<>(noChildren()));
+        return Preconditions.checkNotNull(children, "children");
+    }
 
-        SideEffectSubscriber(Consumer<T> unsafeSubscriber, Refreshable<?> strongParentReference) {
-            this.unsafeSubscriber = unsafeSubscriber;
-            this.strongParentReference = strongParentReference;
+    private Subscribers<SideEffectSubscriber<? super T>> orderedSubscribers() {
+        Subscribers<SideEffectSubscriber<? super T>> existing = orderedSubscribers;
+        if (existing != null) {
+            return existing;
         }
+        ORDERED_SUBSCRIBERS.compareAndSet(this, null, new Subscribers<>(noSubscribers()));
+        return Preconditions.checkNotNull(orderedSubscribers, "orderedSubscribers");
+    }
 
-        @Override
-        public void accept(T value) {
+    private ChildSubscriber<? super T>[] childSnapshot() {
+        Subscribers<ChildSubscriber<? super T>> registered = children;
+        return registered == null ? noChildren() : registered.snapshot();
+    }
+
+    private SideEffectSubscriber<? super T>[] subscriberSnapshot() {
+        Subscribers<SideEffectSubscriber<? super T>> subscribers = orderedSubscribers;
+        return subscribers == null ? noSubscribers() : subscribers.snapshot();
+    }
+
+    private <R> Refreshable<R> mapWith(Function<? super T, R> function, Equivalence<? super R> childEquivalence) {
+        drainCollectedChildren();
+        Lock readLock = rootSubscriberTracker.readLock;
+        for (int attempt = 0; attempt < MAX_OPTIMISTIC_REGISTRATION_ATTEMPTS; attempt++) {
+            int observedVersion = propagations;
+            R initialChildValue = function.apply(propagatedValue());
+            readLock.lock();
             try {
-                unsafeSubscriber.accept(value);
-            } catch (RuntimeException e) {
-                log.error("Failed to update refreshable subscriber with value {}", UnsafeArg.of("value", value), e);
+                if (propagations == observedVersion) {
+                    return registerChild(function, initialChildValue, childEquivalence);
+                }
+            } finally {
+                readLock.unlock();
             }
         }
+        readLock.lock();
+        try {
+            return registerChild(function, function.apply(propagatedValue()), childEquivalence);
+        } finally {
+            readLock.unlock();
+        }
     }
 
-    /** Updates the child refreshable, while still allowing that child refreshable to be garbage collected. */
-    private static final class MapSubscriber<T, R> implements Consumer<T> {
-        private final WeakReference<DefaultRefreshable<R>> childRef;
-        private final Function<T, R> function;
-
-        private MapSubscriber(Function<T, R> function, DefaultRefreshable<R> child) {
-            this.childRef = new WeakReference<>(child);
-            this.function = function;
+    /** Must be called while holding the read lock, like {@link #addChild}. */
+    private <R> Refreshable<R> registerChild(
+            Function<? super T, R> function, R initialChildValue, Equivalence<? super R> childEquivalence) {
+        // Only refreshables derived using map are held by the groups of their parent, which fuse looks for.
+        Object parent = strongParentReference;
+        if (FUSE_MAPS && parent instanceof DefaultRefreshable && lazyDerivation() == null && !isObserved()) {
+            DefaultRefreshable<R> fused =
+                    fuse((DefaultRefreshable<?>) parent, function, initialChildValue, childEquivalence);
+            if (fused != null) {
+                return fused;
+            }
         }
+        DefaultRefreshable<R> child = createChild(initialChildValue, childEquivalence);
 
-        @Override
-        public void accept(T value) {
-            DefaultRefreshable<R> child = childRef.get();
-            if (child != null) {
-                try {
-                    child.update(function.apply(value));
-                } catch (RuntimeException e) {
-                    log.error("Failed to update refreshable subscriber with value {}", UnsafeArg.of("value", value), e);
+        addMapChild(function, child);
+        return child;
+    }
+
+    /**
+     * Nothing observes the changes of this mapped refreshable, so the child is derived from the parent instead. The
+     * registration of this refreshable is replaced by one which applies its maps followed by the function, and which
+     * still updates this refreshable with their intermediate results, so each map runs once per update whether or not
+     * this refreshable is still referenced. Returns null if this refreshable isn't registered with the parent
+     * directly, as it was already fused into another child. Must be called while holding the read lock, like
+     * {@link #addChild}.
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    private <P, R> DefaultRefreshable<R> fuse(
+            DefaultRefreshable<P> parent,
+            Function<? super T, R> function,
+            R initialChildValue,
+            Equivalence<? super R> childEquivalence) {
+        Subscribers<ChildSubscriber<? super P>> registered = parent.children;
+        if (registered == null) {
+            return null;
+        }
+        synchronized (registered) {
+            ChildSubscriber<? super P>[] snapshot = registered.snapshot();
+            // Children are usually mapped right after their parent, so the most recent groups are checked first.
+            for (int i = snapshot.length - 1; i >= 0; i--) {
+                if (!(snapshot[i] instanceof MapGroup)) {
+                    continue;
+                }
+                MapGroup<P> group = (MapGroup<P>) snapshot[i];
+                int index = group.indexOf(this);
+                if (index >= 0) {
+                    FusedMaps fused = group.fuse(index, propagatedValue(), equivalence, function);
+                    DefaultRefreshable<R> child = parent.createChild(initialChildValue, childEquivalence);
+                    registered.replace(group, group.without(index));
+                    parent.addMapChild(fused, child);
+                    return child;
                 }
             }
         }
+        return null;
     }
 
     /**
-     * Stores references to all {@link SideEffectSubscriber} instances, so that they won't be garbage collected until
-     * the whole refreshable tree is collected. Otherwise, derived Refreshables may be GC'd because their only inbound
-     * references could be WeakReferences.
+     * Adds the child to the last {@link MapGroup} if it's the most recently registered child, which keeps children in
+     * registration order. The child is derived by applying either a single function or the {@link FusedMaps} to the
+     * value of this refreshable. Must be called while holding the read lock, like {@link #addChild}.
      */
-    private static final class RootSubscriberTracker {
-        private final Set<SideEffectSubscriber<?>> liveSubscribers = ConcurrentHashMap.newKeySet();
+    @SuppressWarnings("unchecked")
+    private void addMapChild(Object derivation, DefaultRefreshable<?> child) {
+        preSubscribeLogging();
+        Subscribers<ChildSubscriber<? super T>> registered = children();
+        synchronized (registered) {
+            SideState<T> side = sideState();
+            if (side.childParentRef == null) {
+                side.childParentRef = new ParentRef(this);
+            }
+            MapChildRef childRef = new MapChildRef(side.childParentRef, child);
+            ChildSubscriber<? super T>[] snapshot = registered.snapshot();
+            ChildSubscriber<? super T> last = snapshot.length == 0 ? null : snapshot[snapshot.length - 1];
+            if (last instanceof MapGroup) {
+                registered.replace(last, ((MapGroup<T>) last).with(childRef, derivation));
+            } else {
+                registered.add(MapGroup.of(childRef, derivation));
+            }
+        }
+    }
 
-        <T> SideEffectSubscriber<? super T> newSideEffectSubscriber(
+    /**
+     * Prunes the registrations of children derived using {@link #map} which the garbage collector has reported as
+     * collected, handling at most {@link #MAX_DRAINED_COLLECTED_CHILDREN} of them. Called whenever a refreshable is
+     * mapped or has propagated an update, so that threads which create and discard derived refreshables also reclaim
+     * their registrations.
+     */
+    private static void drainCollectedChildren() {
+        for (int i = 0; i < MAX_DRAINED_COLLECTED_CHILDREN; i++) {
+            Reference<? extends DefaultRefreshable<?>> collected = COLLECTED_REFRESHABLES.poll();
+            if (collected == null) {
+                return;
+            }
+            if (collected instanceof ParentRef) {
+                ((ParentRef) collected).parentCollected();
+                continue;
+            }
+            MapChildRef childRef = (MapChildRef) collected;
+            ParentRef parentRef = childRef.parentRef;
+            DefaultRefreshable<?> parent = parentRef == null ? null : parentRef.get();
+            if (parent != null) {
+                parent.reportCollected(childRef);
+            }
+        }
+    }
+
+    /**
+     * Counts the collected child as pending, and prunes every collected child once they make up half of the children,
+     * like {@link MapGroup} compacts its arrays, so that the work of pruning is batched.
+     */
+    @SuppressWarnings("NonAtomicVolatileUpdate") // only written while holding the monitor of the children
+    private void reportCollected(MapChildRef childRef) {
+        Subscribers<ChildSubscriber<? super T>> registered = children();
+        synchronized (registered) {
+            ParentRef parentRef = childRef.parentRef;
+            if (parentRef == null) {
+                // Already pruned by a propagation which found the reference cleared.
+                return;
+            }
+            if (parentRef.collected++ == 0) {
+                PARENTS_WITH_DEAD_CHILDREN.add(parentRef);
+            }
+            PENDING_DEAD_CHILDREN.increment();
+            if (parentRef.collected * 2 >= childCount()) {
+                pruneCollectedChildren();
+            }
+        }
+    }
+
+    /** Removes every child derived using {@link #map} which has been garbage collected. */
+    @SuppressWarnings("unchecked")
+    private void pruneCollectedChildren() {
+        Subscribers<ChildSubscriber<? super T>> registered = children;
+        if (registered == null) {
+            return;
+        }
+        int pruned = 0;
+        synchronized (registered) {
+            for (ChildSubscriber<? super T> child : registered.snapshot()) {
+                if (child instanceof MapGroup) {
+                    MapGroup<T> group = (MapGroup<T>) child;
+                    MapGroup<T> remaining = group.withoutCollected();
+                    if (remaining != group) {
+                        pruned += group.live - (remaining == null ? 0 : remaining.live);
+                        registered.replace(group, remaining);
+                    }
+                }
+            }
+            SideState<T> side = sideState;
+            ParentRef parentRef = side == null ? null : side.childParentRef;
+            if (parentRef != null && parentRef.collected != 0) {
+                PENDING_DEAD_CHILDREN.add(-parentRef.collected);
+                parentRef.collected = 0;
+                PARENTS_WITH_DEAD_CHILDREN.remove(parentRef);
+            }
+        }
+        PRUNED_DEAD_CHILDREN.add(pruned);
+    }
+
+    /** See {@link RefreshableMetrics#pendingDeadChildren}. */
+    static long pendingDeadChildren() {
+        return PENDING_DEAD_CHILDREN.sum();
+    }
+
+    /** See {@link RefreshableMetrics#prunedDeadChildren}. */
+    static long prunedDeadChildren() {
+        return PRUNED_DEAD_CHILDREN.sum();
+    }
+
+    /**
+     * Shared by the references to the children of a refreshable, so that each child can find its parent without
+     * referencing it strongly.
+     */
+    private static final class ParentRef extends WeakReference<DefaultRefreshable<?>> {
+        /**
+         * Children reported as collected which haven't been pruned yet, only written while holding the monitor of the
+         * parent's children, see {@link #reportCollected}.
+         */
+        private volatile int collected;
+
+        ParentRef(DefaultRefreshable<?> parent) {
+            super(parent, COLLECTED_REFRESHABLES);
+        }
+
+        /** Stops counting the pending children of a parent which was garbage collected along with them. */
+        void parentCollected() {
+            if (PARENTS_WITH_DEAD_CHILDREN.remove(this)) {
+                PENDING_DEAD_CHILDREN.add(-collected);
+            }
+        }
+    }
+
+    /**
+     * The reference a {@link MapGroup} holds to a child, which is enqueued once the child has been garbage collected.
+     * Its parent is referenced weakly, as the tree may strongly reference subscribers of the child, which must not be
+     * reachable from the queue.
+     */
+    private static final class MapChildRef extends WeakReference<DefaultRefreshable<?>> {
+        /** Cleared once the child has been pruned, so that it's only counted once. */
+        @Nullable
+        private volatile ParentRef parentRef;
+
+        MapChildRef(ParentRef parentRef, DefaultRefreshable<?> child) {
+            super(child, COLLECTED_REFRESHABLES);
+            this.parentRef = parentRef;
+        }
+    }
+
+    /** Whether any derived refreshable or subscriber is registered, which observe every change of this refreshable. */
+    private boolean isObserved() {
+        Subscribers<?> registeredChildren = children;
+        Subscribers<?> subscribers = orderedSubscribers;
+        return (registeredChildren != null && registeredChildren.size() != 0)
+                || (subscribers != null && subscribers.size() != 0);
+    }
+
+    /** Number of derived refreshables, counting each child held by a {@link MapGroup}. */
+    private int childCount() {
+        int count = 0;
+        for (ChildSubscriber<? super T> child : childSnapshot()) {
+            count += child instanceof MapGroup ? ((MapGroup<?>) child).live : 1;
+        }
+        return count;
+    }
+
+    /**
+     * Registration doesn't invoke the function, so unlike {@link #map} it happens while holding the read lock
+     * throughout. The child starts out dirty, holding the current value of this refreshable.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public <R> Refreshable<R> lazyMap(Function<? super T, R> function) {
+        Lock readLock = rootSubscriberTracker.readLock;
+        readLock.lock();
+        try {
+            DefaultRefreshable<R> child = new DefaultRefreshable<>(
+                    (R) UNRESOLVED,
+                    this,
+                    depth + 1,
+                    rootSubscriberTracker,
+                    new SideState<>(null, new LazyDerivation<>(function, propagatedValue())),
+                    Equivalence.equality());
+            Disposable cleanUp = addChild(new LazyMapSubscriber<>(function, child));
+            REFRESHABLE_CLEANER.register(child, cleanUp::dispose);
+            return child;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Records the new value of the parent of this lazily derived refreshable without recomputing it, unless anything
+     * observes this refreshable when it changes: derived refreshables, subscribers or callers of {@link #nextAsync}.
+     * Returns false if it must be recomputed as part of the propagation instead.
+     */
+    @SuppressWarnings("NonAtomicVolatileUpdate") // propagations is only written by one thread per propagation
+    private boolean markDirtyIfUnobserved(LazyDerivation<?, T> derivation, Object parentValue) {
+        // Registration holds the read lock of the tree, so nothing can start observing changes during the propagation.
+        if (isObserved() || awaitingChange()) {
+            return false;
+        }
+        derivation.markDirty(parentValue);
+        propagations++;
+        if (awaitingChange()) {
+            // Started waiting after the check above, so must be woken now if the value changed.
+            derivation.resolve(this);
+        }
+        return true;
+    }
+
+    /** Must be called while holding the read lock, so that the child doesn't miss an update. */
+    private Disposable addChild(ChildSubscriber<? super T> child) {
+        preSubscribeLogging();
+        Subscribers<ChildSubscriber<? super T>> registered = children();
+        registered.add(child);
+        return new DefaultDisposable(registered, child);
+    }
+
+    /**
+     * Creates a refreshable derived from all of the given refreshables, see {@link Refreshable#combine}. If the inputs
+     * which aren't constant all belong to the same tree, the result is a single node of that tree which is recomputed
+     * at most once per update, after all of its inputs. Otherwise it's the root of a new tree, which is updated by
+     * subscriptions to each input.
+     */
+    static <R> Refreshable<R> combine(
+            List<? extends Refreshable<?>> refreshables, Function<? super List<Object>, R> function) {
+        List<Refreshable<?>> inputs = List.copyOf(refreshables);
+        if (inputs.stream().allMatch(ImmutableRefreshable.class::isInstance)) {
+            return new ImmutableRefreshable<>(function.apply(valuesOf(inputs)));
+        }
+        List<DefaultRefreshable<?>> parents = new ArrayList<>();
+        boolean sameTree = true;
+        for (Refreshable<?> input : inputs) {
+            if (input instanceof DefaultRefreshable) {
+                DefaultRefreshable<?> parent = (DefaultRefreshable<?>) input;
+                sameTree &= parents.isEmpty() || parents.get(0).rootSubscriberTracker == parent.rootSubscriberTracker;
+                parents.add(parent);
+            } else if (!(input instanceof ImmutableRefreshable)) {
+                sameTree = false;
+            }
+        }
+        return sameTree ? combineWithinTree(inputs, parents, function) : combineAcrossTrees(inputs, parents, function);
+    }
+
+    /**
+     * Computes the initial value without holding any locks, like {@link #map}, then registers with every parent while
+     * holding the read lock of their tree.
+     */
+    private static <R> Refreshable<R> combineWithinTree(
+            List<Refreshable<?>> inputs,
+            List<DefaultRefreshable<?>> parents,
+            Function<? super List<Object>, R> function) {
+        parents.sort(Comparator.comparingInt(parent -> parent.depth));
+        Lock readLock = parents.get(0).rootSubscriberTracker.readLock;
+        for (int attempt = 0; attempt < MAX_OPTIMISTIC_REGISTRATION_ATTEMPTS; attempt++) {
+            int[] observedVersions = versionsOf(parents);
+            R initialValue = function.apply(valuesOf(inputs));
+            readLock.lock();
+            try {
+                if (Arrays.equals(observedVersions, versionsOf(parents))) {
+                    return registerCombined(inputs, parents, function, initialValue);
+                }
+            } finally {
+                readLock.unlock();
+            }
+        }
+        readLock.lock();
+        try {
+            return registerCombined(inputs, parents, function, function.apply(valuesOf(inputs)));
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /** Must be called while holding the read lock of the tree, with the parents sorted by depth. */
+    private static <R> Refreshable<R> registerCombined(
+            List<Refreshable<?>> inputs,
+            List<DefaultRefreshable<?>> parents,
+            Function<? super List<Object>, R> function,
+            R initialValue) {
+        DefaultRefreshable<?> deepest = parents.get(parents.size() - 1);
+        DefaultRefreshable<R> child = new DefaultRefreshable<>(
+                initialValue,
+                inputs,
+                deepest.depth + 1,
+                deepest.rootSubscriberTracker,
+                null,
+                Equivalence.equality());
+        CombineSubscriber<R> combineSubscriber = new CombineSubscriber<>(inputs, function, child);
+        for (DefaultRefreshable<?> parent : parents) {
+            Disposable cleanUp = parent.addChild(combineSubscriber);
+            REFRESHABLE_CLEANER.register(child, cleanUp::dispose);
+        }
+        return child;
+    }
+
+    /**
+     * Side-effect subscribers of the combined refreshable are tracked by the trees of all its inputs, so that they
+     * aren't garbage collected while any of those trees is still reachable.
+     */
+    private static <R> Refreshable<R> combineAcrossTrees(
+            List<Refreshable<?>> inputs,
+            List<DefaultRefreshable<?>> parents,
+            Function<? super List<Object>, R> function) {
+        List<RootSubscriberTracker> trackers = parents.stream()
+                .map(parent -> parent.rootSubscriberTracker)
+                .distinct()
+                .collect(Collectors.toList());
+        List<Object> initialValues = valuesOf(inputs);
+        DefaultRefreshable<R> combined = new DefaultRefreshable<>(
+                function.apply(initialValues),
+                inputs,
+                0,
+                new RootSubscriberTracker(trackers),
+                null,
+                Equivalence.equality());
+        CombineBridge<R> bridge = new CombineBridge<>(inputs, function, initialValues, combined);
+        for (Refreshable<?> input : inputs) {
+            if (!(input instanceof ImmutableRefreshable)) {
+                Disposable subscription = input.subscribe(bridge);
+                REFRESHABLE_CLEANER.register(combined, subscription::dispose);
+            }
+        }
+        return combined;
+    }
+
+    /** Runs the updates as a single batch, see {@link Refreshable#batch}. Nested batches join the outermost one. */
+    static void batch(Runnable updates) {
+        if (ACTIVE_BATCH.get() != null) {
+            updates.run();
+            return;
+        }
+        Batch batch = new Batch();
+        ACTIVE_BATCH.set(batch);
+        boolean committing = false;
+        try {
+            updates.run();
+            committing = true;
+            batch.commit();
+        } finally {
+            ACTIVE_BATCH.remove();
+            if (!committing) {
+                batch.discard();
+            }
+        }
+    }
+
+    /**
+     * Returns the lock which the default {@link SettableRefreshable#compareAndUpdate} holds, rather than the
+     * refreshable itself, so that callers synchronizing on the refreshable can't block it.
+     */
+    static Object compareAndUpdateLock(SettableRefreshable<?> refreshable) {
+        return COMPARE_AND_UPDATE_LOCKS.computeIfAbsent(refreshable, _refreshable -> new Object());
+    }
+
+    /**
+     * Completes with the next value delivered to a subscriber of a refreshable which doesn't track versions, see
+     * {@link Refreshable#nextAsync}. The subscription is disposed once the returned future completes or is cancelled.
+     */
+    static <T> CompletableFuture<Versioned<T>> nextChange(Refreshable<T> refreshable) {
+        CompletableFuture<Versioned<T>> changed = new CompletableFuture<>();
+        AtomicBoolean initial = new AtomicBoolean(true);
+        Disposable subscription = refreshable.subscribe(value -> {
+            if (!initial.compareAndSet(true, false)) {
+                changed.complete(new Versioned<>(value, Versioned.UNVERSIONED));
+            }
+        });
+        changed.whenComplete((_value, _throwable) -> subscription.dispose());
+        // Continues on another thread, rather than on the updating thread.
+        CompletableFuture<Versioned<T>> next = changed.thenApplyAsync(Function.identity());
+        next.whenComplete((_value, _throwable) -> changed.cancel(false));
+        return next;
+    }
+
+    /**
+     * Reads the values like a seqlock: the epochs of the trees the refreshables belong to are read before and after the
+     * values, and the read is retried until no propagation was in progress or completed in any of those trees. Readers
+     * never block propagations. A thread which is propagating an update itself reads the values as they are.
+     */
+    static List<Object> snapshot(List<? extends Refreshable<?>> refreshables) {
+        List<Refreshable<?>> inputs = List.copyOf(refreshables);
+        List<RootSubscriberTracker> trees = inputs.stream()
+                .filter(DefaultRefreshable.class::isInstance)
+                .map(input -> ((DefaultRefreshable<?>) input).rootSubscriberTracker)
+                .distinct()
+                .collect(Collectors.toList());
+        long[] epochs = new long[trees.size()];
+        for (int attempt = 1; ; attempt++) {
+            if (readEpochs(trees, epochs)) {
+                List<Object> values = valuesOf(inputs);
+                if (epochsUnchanged(trees, epochs)) {
+                    return values;
+                }
+            }
+            if (attempt % SNAPSHOT_SPINS_BEFORE_YIELDING == 0) {
+                Thread.yield();
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    /** Returns false if a propagation is in progress in any of the trees, other than on the current thread. */
+    private static boolean readEpochs(List<RootSubscriberTracker> trees, long[] epochs) {
+        for (int i = 0; i < epochs.length; i++) {
+            RootSubscriberTracker tree = trees.get(i);
+            epochs[i] = tree.epoch;
+            if ((epochs[i] & 1) != 0 && tree.propagatingThread != Thread.currentThread()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean epochsUnchanged(List<RootSubscriberTracker> trees, long[] epochs) {
+        for (int i = 0; i < epochs.length; i++) {
+            if (trees.get(i).epoch != epochs[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<Object> valuesOf(List<Refreshable<?>> inputs) {
+        Object[] values = new Object[inputs.size()];
+        for (int i = 0; i < values.length; i++) {
+            Refreshable<?> input = inputs.get(i);
+            values[i] = input instanceof DefaultRefreshable
+                    ? ((DefaultRefreshable<?>) input).propagatedValue()
+                    : input.current();
+        }
+        return Collections.unmodifiableList(Arrays.asList(values));
+    }
+
+    private static int[] versionsOf(List<DefaultRefreshable<?>> parents) {
+        int[] versions = new int[parents.size()];
+        for (int i = 0; i < versions.length; i++) {
+            versions[i] = parents.get(i).propagations;
+        }
+        return versions;
+    }
+
+    private void preSubscribeLogging() {
+        if (log.isWarnEnabled()) {
+            int subscribers = subscribers() + 1;
+            if (subscribers > WARN_THRESHOLD) {
+                log.warn(
+                        "Refreshable {} has an excessive number of subscribers: {} and is likely leaking memory. "
+                                + "The current warning threshold is {}.",
+                        SafeArg.of("refreshableIdentifier", System.identityHashCode(this)),
+                        SafeArg.of("numSubscribers", subscribers),
+                        SafeArg.of("warningThreshold", WARN_THRESHOLD),
+                        new SafeRuntimeException("location"));
+            } else if (log.isDebugEnabled()) {
+                log.debug(
+                        "Added a subscription to refreshable {} resulting in {} subscriptions",
+                        SafeArg.of("refreshableIdentifier", System.identityHashCode(this)),
+                        SafeArg.of("numSubscribers", subscribers));
+            }
+        }
+    }
+
+    /**
+     * The state of a refreshable which most refreshables never use, so that it only takes up space in those which do.
+     * Roots with deferred updates and lazily derived refreshables are created with it, others allocate it on first use.
+     */
+    private static final class SideState<T> {
+        /**
+         * Non-null only for root refreshables which propagate updates separately from publishing them, see
+         * {@link RefreshableBuilder#latestWins} and {@link RefreshableBuilder#executor}.
+         */
+        @Nullable
+        private final DeferredUpdates<T> deferredUpdates;
+
+        /** Non-null only for refreshables derived using {@link #lazyMap}. */
+        @Nullable
+        private final LazyDerivation<?, T> lazyDerivation;
+
+        /**
+         * Completed and cleared the next time {@link #current} changes, see {@link #nextAsync}. Shared by all waiters,
+         * so that waiting costs neither a subscriber nor an allocation per waiter. Null while nobody is waiting.
+         */
+        @Nullable
+        private volatile CompletableFuture<Void> changeSignal;
+
+        /**
+         * Refreshables derived using {@link #map(Object, Function)}, by key. Each entry is removed once its refreshable
+         * has been garbage collected. Null until a key is first used.
+         */
+        @Nullable
+        private volatile ConcurrentMap<Object, WeakReference<Refreshable<?>>> keyedChildren;
+
+        /**
+         * Shared by the {@link MapChildRef references} to the children derived using {@link #map}, counting those
+         * which were reported as collected but haven't been pruned yet. Guarded by the monitor of {@link #children}.
+         */
+        @Nullable
+        private ParentRef childParentRef;
+
+        SideState(@Nullable DeferredUpdates<T> deferredUpdates, @Nullable LazyDerivation<?, T> lazyDerivation) {
+            this.deferredUpdates = deferredUpdates;
+            this.lazyDerivation = lazyDerivation;
+        }
+    }
+
+    /** Publishes updates to a root refreshable immediately, and decides when they are propagated to subscribers. */
+    private abstract static class DeferredUpdates<T> {
+        /** The value most recently sent to subscribers, written while holding the write lock. */
+        volatile T propagated;
+
+        DeferredUpdates(T initial) {
+            this.propagated = initial;
+        }
+
+        /**
+         * Publishes the value if the refreshable {@link #accepts} it, returning a future which completes once it has
+         * been propagated, or null if it was rejected.
+         */
+        @Nullable
+        abstract CompletableFuture<Void> publish(DefaultRefreshable<T> refreshable, Object expected, T value);
+    }
+
+    /**
+     * Only propagates an update if no other thread is already doing so. Otherwise, the thread which is propagating
+     * picks up the newest published value once it has finished, so slow subscribers never block writers and
+     * intermediate values may be skipped.
+     */
+    private static final class LatestWinsUpdates<T> extends DeferredUpdates<T> {
+        /** Number of updates published since the draining thread last checked, zero when no thread is draining. */
+        private final AtomicInteger pending = new AtomicInteger();
+
+        /**
+         * Completed once the draining thread has propagated a value at least as new as those published by the threads
+         * waiting on it, which join it before incrementing {@link #pending} so that the draining thread picks it up.
+         */
+        private final AtomicReference<CompletableFuture<Void>> nextRound = new AtomicReference<>();
+
+        LatestWinsUpdates(T initial) {
+            super(initial);
+        }
+
+        /**
+         * The returned future is complete once this value, or a newer one which superseded it, has been propagated by
+         * whichever thread is draining updates.
+         */
+        @Nullable
+        @Override
+        CompletableFuture<Void> publish(DefaultRefreshable<T> refreshable, Object expected, T value) {
+            while (true) {
+                Versioned<T> previous = refreshable.current;
+                if (!refreshable.accepts(previous.value(), expected, value)) {
+                    return null;
+                }
+                if (refreshable.equivalence.equivalent(previous.value(), value)) {
+                    // Already published, but only propagated once the round which propagates the previous value is.
+                    break;
+                }
+                if (CURRENT.compareAndSet(refreshable, previous, previous.next(value))) {
+                    refreshable.signalChange();
+                    break;
+                }
+            }
+            if (pending.compareAndSet(0, 1)) {
+                drain(refreshable);
+                return PROPAGATED;
+            }
+            CompletableFuture<Void> round = joinNextRound();
+            if (pending.getAndIncrement() == 0) {
+                // The previous draining thread finished in the meantime, so this thread propagates its own round.
+                drain(refreshable);
+            }
+            return round;
+        }
+
+        private CompletableFuture<Void> joinNextRound() {
+            while (true) {
+                CompletableFuture<Void> round = nextRound.get();
+                if (round != null) {
+                    return round;
+                }
+                CompletableFuture<Void> created = new CompletableFuture<>();
+                if (nextRound.compareAndSet(null, created)) {
+                    return created;
+                }
+            }
+        }
+
+        /**
+         * Propagates the newest value until no more updates are pending. A failed propagation completes its round
+         * exceptionally but doesn't stop the drain, so values published in the meantime are still propagated, and the
+         * first failure is rethrown once the drain has finished.
+         */
+        private void drain(DefaultRefreshable<T> refreshable) {
+            Throwable failure = null;
+            int missed = 1;
+            do {
+                // Taken before reading the value, which every thread in the round published before joining it.
+                CompletableFuture<Void> round = nextRound.getAndSet(null);
+                try {
+                    refreshable.propagate(ANY_VALUE, refreshable.current());
+                    if (round != null) {
+                        round.complete(null);
+                    }
+                } catch (RuntimeException | Error e) {
+                    if (round != null) {
+                        round.completeExceptionally(e);
+                    }
+                    if (failure == null) {
+                        failure = e;
+                    } else {
+                        failure.addSuppressed(e);
+                    }
+                }
+                missed = pending.addAndGet(-missed);
+            } while (missed != 0);
+            if (failure instanceof Error) {
+                throw (Error) failure;
+            } else if (failure != null) {
+                throw (RuntimeException) failure;
+            }
+        }
+    }
+
+    /**
+     * Propagates updates on an executor, one at a time in the order they were published. At most one drain task is
+     * scheduled at once, so the executor may be shared and subscribers are never invoked concurrently.
+     */
+    private static final class AsyncUpdates<T> extends DeferredUpdates<T> {
+        private final Executor executor;
+        private final int maxPendingUpdates;
+        private final RefreshableBuilder.OverflowPolicy overflowPolicy;
+
+        @GuardedBy("this")
+        private final Deque<PendingUpdate<T>> pending = new ArrayDeque<>();
+
+        /** True while a drain task is scheduled or running. */
+        @GuardedBy("this")
+        private boolean draining = false;
+
+        AsyncUpdates(
+                T initial,
+                Executor executor,
+                int maxPendingUpdates,
+                RefreshableBuilder.OverflowPolicy overflowPolicy) {
+            super(initial);
+            this.executor = executor;
+            this.maxPendingUpdates = maxPendingUpdates;
+            this.overflowPolicy = overflowPolicy;
+        }
+
+        @Nullable
+        @Override
+        CompletableFuture<Void> publish(DefaultRefreshable<T> refreshable, Object expected, T value) {
+            PendingUpdate<T> update = new PendingUpdate<>(value);
+            boolean schedule;
+            boolean changed;
+            synchronized (this) {
+                if (!refreshable.accepts(refreshable.current(), expected, value)) {
+                    return null;
+                }
+                if (pending.size() >= maxPendingUpdates) {
+                    if (overflowPolicy == RefreshableBuilder.OverflowPolicy.REJECT) {
+                        throw new RejectedExecutionException("Too many updates are waiting to be propagated");
+                    }
+                    pending.removeFirst().future.cancel(false);
+                }
+                // Published while holding the lock, so that the current value matches the last queued update.
+                Versioned<T> previous = refreshable.current;
+                changed = !refreshable.equivalence.equivalent(previous.value(), value);
+                if (changed) {
+                    refreshable.current = previous.next(value);
+                }
+                pending.addLast(update);
+                schedule = !draining;
+                draining = true;
+            }
+            if (changed) {
+                refreshable.signalChange();
+            }
+            if (schedule) {
+                try {
+                    executor.execute(() -> drain(refreshable));
+                } catch (RuntimeException e) {
+                    rejectPending(refreshable, e);
+                    throw e;
+                }
+            }
+            return update.future;
+        }
+
+        private void drain(DefaultRefreshable<T> refreshable) {
+            while (true) {
+                PendingUpdate<T> update;
+                synchronized (this) {
+                    update = pending.pollFirst();
+                    if (update == null) {
+                        draining = false;
+                        return;
+                    }
+                }
+                try {
+                    refreshable.propagate(ANY_VALUE, update.value);
+                    update.future.complete(null);
+                } catch (RuntimeException e) {
+                    update.future.completeExceptionally(e);
+                } catch (Throwable t) {
+                    update.future.completeExceptionally(t);
+                    // Lets later updates schedule a drain, rather than leaving the refreshable permanently stale.
+                    synchronized (this) {
+                        draining = false;
+                    }
+                    throw t;
+                }
+            }
+        }
+
+        /**
+         * Fails every queued update once the drain task couldn't be scheduled, and reverts the current value to the one
+         * most recently propagated, so that readers don't observe values which subscribers never will.
+         */
+        private void rejectPending(DefaultRefreshable<T> refreshable, RuntimeException cause) {
+            List<PendingUpdate<T>> rejected;
+            boolean reverted;
+            synchronized (this) {
+                rejected = new ArrayList<>(pending);
+                pending.clear();
+                draining = false;
+                Versioned<T> published = refreshable.current;
+                reverted = !refreshable.equivalence.equivalent(published.value(), propagated);
+                if (reverted) {
+                    refreshable.current = published.next(propagated);
+                }
+            }
+            if (reverted) {
+                refreshable.signalChange();
+            }
+            for (PendingUpdate<T> update : rejected) {
+                update.future.completeExceptionally(cause);
+            }
+        }
+    }
+
+    private static final class PendingUpdate<T> {
+        private final T value;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        PendingUpdate(T value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * Copy-on-write storage for subscribers, preserving registration order. Subscribing and disposing replace the
+     * backing array, which happens rarely compared to updates, so that {@link #update} can iterate over the current
+     * snapshot without locking or allocating.
+     */
+    private static final class Subscribers<S> {
+        private volatile S[] snapshot;
+
+        Subscribers(S[] empty) {
+            this.snapshot = empty;
+        }
+
+        /** Returns the subscribers at the time of the call. The returned array must not be modified. */
+        S[] snapshot() {
+            return snapshot;
+        }
+
+        int size() {
+            return snapshot.length;
+        }
+
+        synchronized void add(S subscriber) {
+            S[] previous = snapshot;
+            S[] next = Arrays.copyOf(previous, previous.length + 1);
+            next[previous.length] = subscriber;
+            snapshot = next;
+        }
+
+        /** Replaces the subscriber with the given one, or removes it if that is null. */
+        synchronized void replace(Object subscriber, @Nullable S replacement) {
+            if (replacement == null) {
+                remove(subscriber);
+                return;
+            }
+            S[] previous = snapshot;
+            for (int i = 0; i < previous.length; i++) {
+                if (previous[i] == subscriber) {
+                    S[] next = previous.clone();
+                    next[i] = replacement;
+                    snapshot = next;
+                    return;
+                }
+            }
+        }
+
+        synchronized void remove(Object subscriber) {
+            S[] previous = snapshot;
+            for (int i = 0; i < previous.length; i++) {
+                if (previous[i] == subscriber) {
+                    S[] next = Arrays.copyOf(previous, previous.length - 1);
+                    System.arraycopy(previous, i + 1, next, i, previous.length - i - 1);
+                    snapshot = next;
+                    return;
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> ChildSubscriber<? super T>[] noChildren() {
+        return (ChildSubscriber<? super T>[]) NO_CHILDREN;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> SideEffectSubscriber<? super T>[] noSubscribers() {
+        return (SideEffectSubscriber<? super T>[]) NO_SUBSCRIBERS;
+    }
+
+    /**
+     * Propagates a single update through the tree derived from the updated refreshable, identified by a generation
+     * which is unique to the update. Changed refreshables are processed level by level in order of depth, and each is
+     * recomputed at most once per generation, after all its inputs, so that no refreshable observes an intermediate
+     * state of the tree. Side-effect subscribers only run once the whole tree is up-to-date, in order of depth and then
+     * registration.
+     *
+     * <p>The changed values and subscribers are held in reusable lists, so steady state updates don't allocate.
+     *
+     * <p>If a {@link ForkJoinPool} is provided, the derivations within each level are fanned out across the pool. Each
+     * batch of tasks records what changed in a propagation of its own, which is merged into this one in task order once
+     * the level completes, so workers only contend to claim refreshables. Levels are still processed in order, and
+     * side-effect subscribers still run on the updating thread once the whole tree is up-to-date.
+     */
+    private static final class Propagation {
+        private static final AtomicLong GENERATIONS = new AtomicLong();
+
+        @Nullable
+        private final ForkJoinPool pool;
+
+        private final List<Level> levels = new ArrayList<>();
+
+        /** Notifications of subscribers which are notified on an executor, see {@link DispatchingSubscriber}. */
+        private final List<CompletableFuture<Void>> dispatched = new ArrayList<>();
+
+        /** Refreshables with children which were found to have been garbage collected while deriving them. */
+        private final List<DefaultRefreshable<?>> withCollectedChildren = new ArrayList<>();
+
+        private long generation;
+
+        Propagation(@Nullable ForkJoinPool pool) {
+            this.pool = pool;
+        }
+
+        /** Returns a propagation recording the changes of one batch of parallel tasks, see {@link #merge}. */
+        Propagation forTask() {
+            Propagation task = new Propagation(pool);
+            task.generation = generation;
+            return task;
+        }
+
+        /** Adds the changes recorded by a batch of parallel tasks, once it has completed. */
+        void merge(Propagation task) {
+            for (int depth = 0; depth < task.levels.size(); depth++) {
+                level(depth).addAll(task.levels.get(depth));
+            }
+            for (DefaultRefreshable<?> parent : task.withCollectedChildren) {
+                addCollected(parent);
+            }
+        }
+
+        /**
+         * Returns a future which completes once subscribers notified on an executor have observed the update, or null
+         * if all subscribers were notified synchronously.
+         */
+        @Nullable
+        <T> CompletableFuture<Void> run(DefaultRefreshable<T> updated, T value) {
+            generation = GENERATIONS.incrementAndGet();
+            updated.generation = generation;
+            try {
+                changed(updated, value);
+                // Levels are appended to while iterating, as changed children are always deeper than their parents.
+                for (int depth = updated.depth; depth < levels.size(); depth++) {
+                    Level level = levels.get(depth);
+                    level.recomputeCombined(this);
+                    level.deriveChildren(this);
+                }
+                // Every refreshable in the tree is up-to-date, so subscribers may take consistent snapshots.
+                updated.rootSubscriberTracker.endChange();
+                for (int depth = updated.depth; depth < levels.size(); depth++) {
+                    levels.get(depth).runSideEffects(this);
+                }
+                return dispatched.isEmpty()
+                        ? null
+                        : CompletableFuture.allOf(dispatched.toArray(new CompletableFuture<?>[0]));
+            } finally {
+                for (Level level : levels) {
+                    level.clear();
+                }
+                dispatched.clear();
+                for (DefaultRefreshable<?> parent : withCollectedChildren) {
+                    parent.pruneCollectedChildren();
+                }
+                withCollectedChildren.clear();
+            }
+        }
+
+        /** Records that a child was found to have been garbage collected, so that it's pruned once this completes. */
+        void collected(MapChildRef childRef) {
+            ParentRef parentRef = childRef.parentRef;
+            DefaultRefreshable<?> parent = parentRef == null ? null : parentRef.get();
+            if (parent != null) {
+                addCollected(parent);
+            }
+        }
+
+        private void addCollected(DefaultRefreshable<?> parent) {
+            for (DefaultRefreshable<?> existing : withCollectedChildren) {
+                if (existing == parent) {
+                    return;
+                }
+            }
+            withCollectedChildren.add(parent);
+        }
+
+        /** Returns false if the refreshable has already been recomputed by this propagation. */
+        boolean claim(DefaultRefreshable<?> refreshable) {
+            if (pool == null) {
+                if (refreshable.generation == generation) {
+                    return false;
+                }
+                refreshable.generation = generation;
+                return true;
+            }
+            // Only one propagation runs through a tree at a time, so a failed exchange means another worker claimed it.
+            long previous = (long) GENERATION.getAcquire(refreshable);
+            return previous != generation && GENERATION.compareAndSet(refreshable, previous, generation);
+        }
+
+        /**
+         * Records that the refreshable's value changed, capturing the subscribers to notify while the write lock of the
+         * tree is held. Subscribers which register later observe the new value when registering instead.
+         */
+        <T> void changed(DefaultRefreshable<T> refreshable, T value) {
+            ChildSubscriber<? super T>[] children = refreshable.childSnapshot();
+            SideEffectSubscriber<? super T>[] subscribers = refreshable.subscriberSnapshot();
+            level(refreshable.depth).add(value, children, subscribers);
+        }
+
+        /** Defers recomputing a combined refreshable until all of its inputs, which are shallower, are up-to-date. */
+        void schedule(CombineSubscriber<?> combined, int depth) {
+            level(depth).combined.add(combined);
+        }
+
+        void notify(SideEffectSubscriber<Object> subscriber, Object value) {
+            CompletableFuture<Void> notified = subscriber.dispatch(value);
+            if (notified != null) {
+                dispatched.add(notified);
+            }
+        }
+
+        private Level level(int depth) {
+            while (levels.size() <= depth) {
+                levels.add(new Level());
+            }
+            return levels.get(depth);
+        }
+    }
+
+    /** The refreshables at one depth which changed during a {@link Propagation}, held in parallel lists. */
+    private static final class Level {
+        private final List<CombineSubscriber<?>> combined = new ArrayList<>();
+        private final List<Object> values = new ArrayList<>();
+        private final List<ChildSubscriber<?>[]> children = new ArrayList<>();
+        private final List<SideEffectSubscriber<?>[]> subscribers = new ArrayList<>();
+
+        void add(Object value, ChildSubscriber<?>[] changedChildren, SideEffectSubscriber<?>[] changedSubscribers) {
+            values.add(value);
+            children.add(changedChildren);
+            subscribers.add(changedSubscribers);
+        }
+
+        void addAll(Level other) {
+            combined.addAll(other.combined);
+            values.addAll(other.values);
+            children.addAll(other.children);
+            subscribers.addAll(other.subscribers);
+        }
+
+        void recomputeCombined(Propagation propagation) {
+            if (propagation.pool != null) {
+                List<Consumer<Propagation>> tasks = new ArrayList<>(combined.size());
+                for (CombineSubscriber<?> subscriber : combined) {
+                    tasks.add(subscriber::recompute);
+                }
+                FanOut.run(propagation, tasks);
+                return;
+            }
+            for (int i = 0; i < combined.size(); i++) {
+                combined.get(i).recompute(propagation);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        void deriveChildren(Propagation propagation) {
+            if (propagation.pool != null) {
+                List<Consumer<Propagation>> tasks = new ArrayList<>();
+                for (int i = 0; i < values.size(); i++) {
+                    Object value = values.get(i);
+                    for (ChildSubscriber<?> child : children.get(i)) {
+                        if (child instanceof MapGroup) {
+                            ((MapGroup<Object>) child).addTasks(value, tasks);
+                        } else {
+                            tasks.add(task -> ((ChildSubscriber<Object>) child).derive(value, task));
+                        }
+                    }
+                }
+                FanOut.run(propagation, tasks);
+                return;
+            }
+            for (int i = 0; i < values.size(); i++) {
+                Object value = values.get(i);
+                for (ChildSubscriber<?> child : children.get(i)) {
+                    ((ChildSubscriber<Object>) child).derive(value, propagation);
+                }
+            }
+        }
+
+        /**
+         * Notifies subscribers on the updating thread even when propagating in parallel, as subscribers may register
+         * with the tree, which waits for the write lock held by the updating thread if attempted from a worker.
+         */
+        @SuppressWarnings("unchecked")
+        void runSideEffects(Propagation propagation) {
+            for (int i = 0; i < values.size(); i++) {
+                Object value = values.get(i);
+                for (SideEffectSubscriber<?> subscriber : subscribers.get(i)) {
+                    propagation.notify((SideEffectSubscriber<Object>) subscriber, value);
+                }
+            }
+        }
+
+        void clear() {
+            combined.clear();
+            values.clear();
+            children.clear();
+            subscribers.clear();
+        }
+    }
+
+    /**
+     * Runs the tasks of one level on a {@link ForkJoinPool}, splitting them in halves until each part is small enough
+     * to run on a single worker, and returns once all of them have completed. Each part records its changes in a
+     * propagation of its own, which are merged in task order once all parts have completed.
+     */
+    private static final class FanOut extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Propagation propagation;
+        private final List<Consumer<Propagation>> tasks;
+        private final int from;
+        private final int to;
+        private final int batchSize;
+
+        @Nullable
+        private FanOut first;
+
+        @Nullable
+        private FanOut second;
+
+        @Nullable
+        private Propagation changes;
+
+        private FanOut(Propagation propagation, List<Consumer<Propagation>> tasks, int from, int to, int batchSize) {
+            this.propagation = propagation;
+            this.tasks = tasks;
+            this.from = from;
+            this.to = to;
+            this.batchSize = batchSize;
+        }
+
+        static void run(Propagation propagation, List<Consumer<Propagation>> tasks) {
+            ForkJoinPool pool = Preconditions.checkNotNull(propagation.pool, "Not a parallel propagation");
+            if (tasks.size() <= 1) {
+                tasks.forEach(task -> task.accept(propagation));
+                return;
+            }
+            // a few batches per worker, so that work can be stolen if some tasks are slower than others
+            int batchSize = Math.max(1, tasks.size() / (4 * pool.getParallelism()));
+            FanOut root = new FanOut(propagation, tasks, 0, tasks.size(), batchSize);
+            pool.invoke(root);
+            root.mergeInto(propagation);
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= batchSize) {
+                changes = propagation.forTask();
+                for (int i = from; i < to; i++) {
+                    tasks.get(i).accept(changes);
+                }
+            } else {
+                int middle = (from + to) >>> 1;
+                first = new FanOut(propagation, tasks, from, middle, batchSize);
+                second = new FanOut(propagation, tasks, middle, to, batchSize);
+                invokeAll(first, second);
+            }
+        }
+
+        /** Only called once this and all of its parts have completed. */
+        private void mergeInto(Propagation target) {
+            if (changes != null) {
+                target.merge(changes);
+            }
+            if (first != null) {
+                first.mergeInto(target);
+            }
+            if (second != null) {
+                second.mergeInto(target);
+            }
+        }
+    }
+
+    /**
+     * Purely for GC purposes - this class holds a reference to its parent refreshable. Instances of this class are
+     * themselves tracked by the {@link RootSubscriberTracker}.
+     */
+    private static class SideEffectSubscriber<T> implements Consumer<T> {
+        private final Consumer<T> unsafeSubscriber;
+
+        @SuppressWarnings("unused")
+        private final Refreshable<?> strongParentReference;
+
+        SideEffectSubscriber(Consumer<T> unsafeSubscriber, Refreshable<?> strongParentReference) {
+            this.unsafeSubscriber = unsafeSubscriber;
+            this.strongParentReference = strongParentReference;
+        }
+
+        @Override
+        public void accept(T value) {
+            try {
+                unsafeSubscriber.accept(value);
+            } catch (RuntimeException e) {
+                log.error("Failed to update refreshable subscriber with value {}", UnsafeArg.of("value", value), e);
+            }
+        }
+
+        /**
+         * Notifies the subscriber of a value propagated by an update. Returns a future which completes once the
+         * subscriber has observed the value if that happens asynchronously, or null if it already has.
+         */
+        @Nullable
+        CompletableFuture<Void> dispatch(T value) {
+            accept(value);
+            return null;
+        }
+
+        /** Drops notifications which haven't been delivered yet, once the subscriber has been unregistered. */
+        void cancel() {}
+    }
+
+    /**
+     * Notifies the subscriber of propagated values on an executor, see {@link RefreshableBuilder#subscriberExecutor}
+     * and {@link #subscribeLatest}. The initial value is still delivered by {@link #subscribe} on the calling thread,
+     * before the subscriber is registered for updates.
+     */
+    private static final class DispatchingSubscriber<T> extends SideEffectSubscriber<T> {
+        private final Mailbox<T> mailbox;
+
+        DispatchingSubscriber(
+                Consumer<T> unsafeSubscriber,
+                Refreshable<?> strongParentReference,
+                Executor executor,
+                boolean conflate) {
+            super(unsafeSubscriber, strongParentReference);
+            this.mailbox = conflate ? new ConflatingMailbox<>(this, executor) : new SerialMailbox<>(this, executor);
+        }
+
+        @Override
+        CompletableFuture<Void> dispatch(T value) {
+            return mailbox.offer(value);
+        }
+
+        @Override
+        void cancel() {
+            mailbox.cancel();
+        }
+    }
+
+    /**
+     * Delivers values to a subscriber on an executor, one at a time. At most one drain task is scheduled at once, so
+     * the executor may be shared and the subscriber is never invoked concurrently. If the executor rejects the task,
+     * values are delivered on the offering thread instead. Once cancelled, pending and subsequent values are dropped,
+     * although a delivery which has already started runs to completion.
+     */
+    private abstract static class Mailbox<T> {
+        private final Consumer<T> subscriber;
+        private final Executor executor;
+
+        /** True while a drain task is scheduled or running. */
+        @GuardedBy("this")
+        private boolean draining = false;
+
+        @GuardedBy("this")
+        private boolean cancelled = false;
+
+        Mailbox(Consumer<T> subscriber, Executor executor) {
+            this.subscriber = subscriber;
+            this.executor = executor;
+        }
+
+        /** Returns a future which completes once the subscriber has observed the value, or a newer one. */
+        final CompletableFuture<Void> offer(T value) {
+            PendingUpdate<T> delivery = new PendingUpdate<>(value);
+            synchronized (this) {
+                if (cancelled) {
+                    delivery.future.complete(null);
+                    return delivery.future;
+                }
+                enqueue(delivery);
+                if (draining) {
+                    return delivery.future;
+                }
+                draining = true;
+            }
+            try {
+                executor.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                log.warn("Subscriber executor rejected a notification, notifying the subscriber directly", e);
+                drain();
+            }
+            return delivery.future;
+        }
+
+        /** Drops pending values, completing their futures so that updates awaiting subscribers don't wait on them. */
+        final synchronized void cancel() {
+            cancelled = true;
+            for (PendingUpdate<T> dropped = poll(); dropped != null; dropped = poll()) {
+                dropped.future.complete(null);
+            }
+        }
+
+        @GuardedBy("this")
+        abstract void enqueue(PendingUpdate<T> delivery);
+
+        /** Returns the next value to deliver, or null if there is none. */
+        @Nullable
+        @GuardedBy("this")
+        abstract PendingUpdate<T> poll();
+
+        private void drain() {
+            while (true) {
+                PendingUpdate<T> delivery;
+                synchronized (this) {
+                    delivery = poll();
+                    if (delivery == null) {
+                        draining = false;
+                        return;
+                    }
+                }
+                subscriber.accept(delivery.value);
+                delivery.future.complete(null);
+            }
+        }
+    }
+
+    /** Delivers every value, in the order they were offered. */
+    private static final class SerialMailbox<T> extends Mailbox<T> {
+        @GuardedBy("this")
+        private final Deque<PendingUpdate<T>> pending = new ArrayDeque<>();
+
+        SerialMailbox(Consumer<T> subscriber, Executor executor) {
+            super(subscriber, executor);
+        }
+
+        @Override
+        void enqueue(PendingUpdate<T> delivery) {
+            pending.addLast(delivery);
+        }
+
+        @Nullable
+        @Override
+        PendingUpdate<T> poll() {
+            return pending.pollFirst();
+        }
+    }
+
+    /**
+     * Only keeps the newest value which hasn't been delivered yet, so a subscriber which is slower than updates skips
+     * intermediate values rather than falling behind. Values are never delivered twice, and the futures of skipped
+     * values complete once they're superseded.
+     */
+    private static final class ConflatingMailbox<T> extends Mailbox<T> {
+        @Nullable
+        @GuardedBy("this")
+        private PendingUpdate<T> latest;
+
+        ConflatingMailbox(Consumer<T> subscriber, Executor executor) {
+            super(subscriber, executor);
+        }
+
+        @Override
+        void enqueue(PendingUpdate<T> delivery) {
+            PendingUpdate<T> superseded = latest;
+            latest = delivery;
+            if (superseded != null) {
+                superseded.future.complete(null);
+            }
+        }
+
+        @Nullable
+        @Override
+        PendingUpdate<T> poll() {
+            PendingUpdate<T> delivery = latest;
+            latest = null;
+            return delivery;
+        }
+    }
+
+    /** Recomputes a refreshable derived from the one it's registered with, as part of a {@link Propagation}. */
+    private interface ChildSubscriber<T> {
+        void derive(T value, Propagation propagation);
+    }
+
+    /**
+     * Updates consecutively registered children derived using {@link #map}, while still allowing each of them to be
+     * garbage collected. Siblings share a single entry in {@link #children}, holding their child references and
+     * derivations in parallel arrays, rather than each registering a subscriber of its own.
+     *
+     * <p>Groups are immutable, apart from clearing the references of removed children: adding or removing a child
+     * replaces the group, so that propagations which captured the previous one keep seeing exactly the children it
+     * held. Children are added by writing past the {@link #size} of the previous group, which is never read through it,
+     * so appending only copies the arrays when they are full. Removed children leave a gap, until they outnumber the
+     * remaining ones and the arrays are compacted. All changes are made while holding the monitor of {@link #children}.
+     */
+    private static final class MapGroup<T> implements ChildSubscriber<T> {
+        private static final int INITIAL_CAPACITY = 4;
+
+        /** Cleared for children which have been removed, shared with other versions of the group. */
+        private final MapChildRef[] childRefs;
+
+        /**
+         * The function each child applies to the value of the parent, or its {@link FusedMaps} if other maps were fused
+         * into it. Most children apply a single function, which is held directly so that they don't allocate more.
+         */
+        private final Object[] derivations;
+
+        /** Number of entries in the arrays which belong to this group, including removed children. */
+        private final int size;
+
+        /** Number of children which haven't been removed, including those collected but not pruned yet. */
+        private final int live;
+
+        private MapGroup(MapChildRef[] childRefs, Object[] derivations, int size, int live) {
+            this.childRefs = childRefs;
+            this.derivations = derivations;
+            this.size = size;
+            this.live = live;
+        }
+
+        static <T> MapGroup<T> of(MapChildRef childRef, Object derivation) {
+            return new MapGroup<T>(new MapChildRef[INITIAL_CAPACITY], new Object[INITIAL_CAPACITY], 0, 0)
+                    .with(childRef, derivation);
+        }
+
+        /** Returns the group which also holds the given child. */
+        MapGroup<T> with(MapChildRef childRef, Object derivation) {
+            MapGroup<T> group = size < childRefs.length ? this : compact(Math.max(INITIAL_CAPACITY, live * 2));
+            group.childRefs[group.size] = childRef;
+            group.derivations[group.size] = derivation;
+            return new MapGroup<>(group.childRefs, group.derivations, group.size + 1, group.live + 1);
+        }
+
+        /** Returns the index of the given child, or -1 if it isn't held by this group. */
+        int indexOf(DefaultRefreshable<?> child) {
+            for (int i = size - 1; i >= 0; i--) {
+                MapChildRef childRef = childRefs[i];
+                if (childRef != null && childRef.get() == child) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Returns the maps of the child at the index followed by the function, which keep updating the child with the
+         * result of its maps, given its current value and equivalence.
+         */
+        @SuppressWarnings("unchecked")
+        FusedMaps fuse(int index, Object childValue, Equivalence<?> childEquivalence, Function<?, ?> function) {
+            Object derivation = derivations[index];
+            FusedMaps fused = derivation instanceof FusedMaps
+                    ? (FusedMaps) derivation
+                    : new FusedMaps(new Function<?, ?>[] {(Function<?, ?>) derivation}, new Equivalence<?>[0]);
+            return fused.then(childValue, childEquivalence, childRefs[index], function);
+        }
+
+        /**
+         * Returns the group without the child at the index, or null if it was the last one. The reference to the child
+         * isn't cleared, as it's held by the maps the child was fused into. Must be called while holding the read lock
+         * of the tree, which rules out propagations still reading the entry.
+         */
+        @Nullable
+        MapGroup<T> without(int index) {
+            childRefs[index] = null;
+            return live == 1 ? null : new MapGroup<>(childRefs, derivations, size, live - 1);
+        }
+
+        /**
+         * Returns the group without the children which have been garbage collected, null if none are left, or this
+         * group if none were collected. Collected children whose fused refreshables are still referenced are replaced
+         * by the deepest of those when compacting, so that it keeps being updated.
+         */
+        @Nullable
+        MapGroup<T> withoutCollected() {
+            int remaining = live;
+            boolean replaced = false;
+            for (int i = 0; i < size; i++) {
+                MapChildRef childRef = childRefs[i];
+                if (childRef != null && childRef.get() == null) {
+                    Object derivation = derivations[i];
+                    if (derivation instanceof FusedMaps && ((FusedMaps) derivation).deepestIntermediate() >= 0) {
+                        replaced = true;
+                        continue;
+                    }
+                    // The derivation is still read by propagations which found the reference.
+                    childRefs[i] = null;
+                    childRef.parentRef = null;
+                    remaining--;
+                }
+            }
+            if (remaining == live && !replaced) {
+                return this;
+            }
+            if (remaining == 0) {
+                return null;
+            }
+            MapGroup<T> group = new MapGroup<>(childRefs, derivations, size, remaining);
+            if (replaced || size - group.live > group.live) {
+                group = group.compact(Math.max(INITIAL_CAPACITY, group.live * 2));
+            }
+            return group.live == 0 ? null : group;
+        }
+
+        /** Copies the group into new arrays, replacing collected children by their deepest fused refreshable. */
+        private MapGroup<T> compact(int capacity) {
+            MapChildRef[] compactedRefs = new MapChildRef[capacity];
+            Object[] compactedDerivations = new Object[capacity];
+            int next = 0;
+            for (int i = 0; i < size; i++) {
+                MapChildRef childRef = childRefs[i];
+                if (childRef == null) {
+                    continue;
+                }
+                Object derivation = derivations[i];
+                int deepest = childRef.get() == null && derivation instanceof FusedMaps
+                        ? ((FusedMaps) derivation).deepestIntermediate()
+                        : -1;
+                if (deepest < 0) {
+                    compactedRefs[next] = childRef;
+                    compactedDerivations[next] = derivation;
+                } else {
+                    FusedMaps fused = (FusedMaps) derivation;
+                    compactedRefs[next] = fused.intermediateRefs[deepest];
+                    compactedDerivations[next] = fused.upTo(deepest);
+                    childRef.parentRef = null;
+                }
+                next++;
+            }
+            return new MapGroup<>(compactedRefs, compactedDerivations, next, next);
+        }
+
+        @Override
+        public void derive(T value, Propagation propagation) {
+            for (int i = 0; i < size; i++) {
+                derive(i, value, propagation);
+            }
+        }
+
+        /** Adds a task deriving each child, so that they're fanned out individually like ungrouped children. */
+        void addTasks(T value, List<Consumer<Propagation>> tasks) {
+            for (int i = 0; i < size; i++) {
+                if (childRefs[i] != null) {
+                    int index = i;
+                    tasks.add(task -> derive(index, value, task));
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void derive(int index, T value, Propagation propagation) {
+            MapChildRef childRef = childRefs[index];
+            if (childRef == null) {
+                return;
+            }
+            DefaultRefreshable<Object> child = (DefaultRefreshable<Object>) childRef.get();
+            Object derivation = derivations[index];
+            if (child == null) {
+                propagation.collected(childRef);
+                if (!(derivation instanceof FusedMaps)) {
+                    return;
+                }
+            } else if (!propagation.claim(child)) {
+                return;
+            }
+            Object childValue;
+            try {
+                childValue = derivation instanceof FusedMaps
+                        ? ((FusedMaps) derivation).apply(value, child != null, propagation)
+                        : ((Function<Object, Object>) derivation).apply(value);
+            } catch (RuntimeException e) {
+                log.error("Failed to update refreshable subscriber with value {}", UnsafeArg.of("value", value), e);
+                return;
+            }
+            if (child != null && childValue != UNCHANGED) {
+                child.derive(childValue, propagation);
+            }
+        }
+    }
+
+    /**
+     * Maps applied by a single registration in place of the intermediate refreshables which {@link #fuse} folded into
+     * it. The result of each map but the last is compared to its previous result using the equivalence of its
+     * intermediate refreshable, which is updated with it as long as it's referenced.
+     */
+    private static final class FusedMaps {
+        private final Function<Object, Object>[] functions;
+        private final Equivalence<Object>[] equivalences;
+
+        /** The latest result of every map but the last. Only accessed by the thread propagating an update. */
+        private final Object[] intermediates;
+
+        /** References to the intermediate refreshables, which are only updated through these maps. */
+        private final MapChildRef[] intermediateRefs;
+
+        @SuppressWarnings("unchecked")
+        FusedMaps(Function<?, ?>[] functions, Equivalence<?>[] equivalences) {
+            this.functions = (Function<Object, Object>[]) functions;
+            this.equivalences = (Equivalence<Object>[]) equivalences;
+            this.intermediates = new Object[equivalences.length];
+            this.intermediateRefs = new MapChildRef[equivalences.length];
+        }
+
+        /**
+         * Returns the maps which also apply the function to the result of these, recording the refreshable holding
+         * that result, along with its current value and equivalence.
+         */
+        FusedMaps then(
+                Object result, Equivalence<?> resultEquivalence, MapChildRef resultRef, Function<?, ?> function) {
+            int length = intermediates.length;
+            Function<?, ?>[] fusedFunctions = Arrays.copyOf(functions, length + 2);
+            fusedFunctions[length + 1] = function;
+            Equivalence<?>[] fusedEquivalences = Arrays.copyOf(equivalences, length + 1);
+            fusedEquivalences[length] = resultEquivalence;
+            FusedMaps fused = new FusedMaps(fusedFunctions, fusedEquivalences);
+            System.arraycopy(intermediates, 0, fused.intermediates, 0, length);
+            fused.intermediates[length] = result;
+            System.arraycopy(intermediateRefs, 0, fused.intermediateRefs, 0, length);
+            fused.intermediateRefs[length] = resultRef;
+            return fused;
+        }
+
+        /**
+         * Returns the derivation of the intermediate refreshable at the position: its first function, or the maps up
+         * to its result.
+         */
+        Object upTo(int position) {
+            if (position == 0) {
+                return functions[0];
+            }
+            FusedMaps prefix = new FusedMaps(
+                    Arrays.copyOf(functions, position + 1), Arrays.copyOf(equivalences, position));
+            System.arraycopy(intermediates, 0, prefix.intermediates, 0, position);
+            System.arraycopy(intermediateRefs, 0, prefix.intermediateRefs, 0, position);
+            return prefix;
+        }
+
+        /** Returns the position of the deepest intermediate refreshable which hasn't been collected, or -1. */
+        int deepestIntermediate() {
+            for (int i = intermediateRefs.length - 1; i >= 0; i--) {
+                if (intermediateRefs[i].get() != null) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Applies the maps, updating the intermediate refreshables along the way, and returns {@link #UNCHANGED} if an
+         * intermediate result is unchanged, or the child was collected so that the last map isn't needed.
+         */
+        @SuppressWarnings("unchecked")
+        Object apply(Object value, boolean childReferenced, Propagation propagation) {
+            Object result = value;
+            for (int i = 0; i < intermediates.length; i++) {
+                result = functions[i].apply(result);
+                if (equivalences[i].equivalent(intermediates[i], result)) {
+                    // Stops here, just like the propagation would at an unchanged intermediate refreshable.
+                    return UNCHANGED;
+                }
+                intermediates[i] = result;
+                DefaultRefreshable<Object> intermediate = (DefaultRefreshable<Object>) intermediateRefs[i].get();
+                if (intermediate != null && propagation.claim(intermediate)) {
+                    intermediate.derive(result, propagation);
+                }
+            }
+            return childReferenced ? functions[intermediates.length].apply(result) : UNCHANGED;
+        }
+    }
+
+    /**
+     * Updates a child created by {@link #lazyMap}, which is only recomputed as part of the propagation if anything
+     * observes its changes. Otherwise it's recomputed when it's next read.
+     */
+    private static final class LazyMapSubscriber<T, R> implements ChildSubscriber<T> {
+        private final WeakReference<DefaultRefreshable<R>> childRef;
+        private final Function<T, R> function;
+
+        private LazyMapSubscriber(Function<T, R> function, DefaultRefreshable<R> child) {
+            this.childRef = new WeakReference<>(child);
+            this.function = function;
+        }
+
+        @Override
+        public void derive(T value, Propagation propagation) {
+            DefaultRefreshable<R> child = childRef.get();
+            if (child == null || !propagation.claim(child)) {
+                return;
+            }
+            LazyDerivation<?, R> derivation = Preconditions.checkNotNull(child.lazyDerivation(), "lazyDerivation");
+            if (child.markDirtyIfUnobserved(derivation, value)) {
+                return;
+            }
+            R childValue;
+            try {
+                childValue = function.apply(value);
+            } catch (RuntimeException e) {
+                log.error("Failed to update refreshable subscriber with value {}", UnsafeArg.of("value", value), e);
+                return;
+            }
+            child.derive(childValue, propagation);
+        }
+    }
+
+    /**
+     * The function and latest input of a refreshable created by {@link #lazyMap}. Readers of a dirty refreshable
+     * recompute it while holding this monitor, so each input is only applied once even if several threads read it
+     * concurrently. Propagations mark it dirty while holding the write lock of the tree, so locks are always acquired
+     * in that order.
+     */
+    private static final class LazyDerivation<P, T> {
+        private final Function<? super P, T> function;
+
+        @GuardedBy("this")
+        private P input;
+
+        private volatile boolean dirty = true;
+
+        LazyDerivation(Function<? super P, T> function, P input) {
+            this.function = function;
+            this.input = input;
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized void markDirty(Object parentValue) {
+            input = (P) parentValue;
+            dirty = true;
+        }
+
+        /**
+         * If the function throws, the refreshable keeps its previous value, like a refreshable created by
+         * {@link #map}. The exception is only thrown to the reader if there is no previous value.
+         */
+        synchronized void resolve(DefaultRefreshable<T> refreshable) {
+            if (!dirty) {
+                return;
+            }
+            Versioned<T> previous = refreshable.current;
+            T value;
+            try {
+                value = function.apply(input);
+            } catch (RuntimeException e) {
+                if (previous.value() == UNRESOLVED) {
+                    throw e;
+                }
+                log.error("Failed to update refreshable subscriber with value {}", UnsafeArg.of("value", input), e);
+                dirty = false;
+                return;
+            }
+            dirty = false;
+            if (previous.value() == UNRESOLVED) {
+                refreshable.current = new Versioned<>(value, 0);
+            } else if (!refreshable.equivalence.equivalent(previous.value(), value)) {
+                refreshable.current = previous.next(value);
+                refreshable.signalChange();
+            }
+        }
+    }
+
+    /**
+     * Registered with every input of a combined refreshable in the same tree. The child is only recomputed once per
+     * propagation, after all of its inputs, and is still allowed to be garbage collected.
+     */
+    private static final class CombineSubscriber<R> implements ChildSubscriber<Object> {
+        private final WeakReference<DefaultRefreshable<R>> childRef;
+        private final List<Refreshable<?>> inputs;
+        private final Function<? super List<Object>, R> function;
+
+        CombineSubscriber(
+                List<Refreshable<?>> inputs, Function<? super List<Object>, R> function, DefaultRefreshable<R> child) {
+            this.childRef = new WeakReference<>(child);
+            this.inputs = inputs;
+            this.function = function;
+        }
+
+        @Override
+        public void derive(Object _value, Propagation propagation) {
+            DefaultRefreshable<R> child = childRef.get();
+            if (child != null && propagation.claim(child)) {
+                propagation.schedule(this, child.depth);
+            }
+        }
+
+        void recompute(Propagation propagation) {
+            DefaultRefreshable<R> child = childRef.get();
+            if (child != null) {
+                List<Object> values = valuesOf(inputs);
+                R childValue;
+                try {
+                    childValue = function.apply(values);
+                } catch (RuntimeException e) {
+                    log.error(
+                            "Failed to update refreshable subscriber with values {}",
+                            UnsafeArg.of("values", values),
+                            e);
+                    return;
+                }
+                child.derive(childValue, propagation);
+            }
+        }
+    }
+
+    /**
+     * Subscribed to every input of a combined refreshable which spans several trees. Inputs from the same tree may
+     * notify it once each for the same update, so the child is only recomputed if an input holds a different instance
+     * than last time. Recomputing is serialized, so that concurrent updates to different trees can't be reordered.
+     * Notifications on a thread running a {@link Batch} are deferred until the batch has published its updates.
+     */
+    private static final class CombineBridge<R> implements Consumer<Object> {
+        private final WeakReference<DefaultRefreshable<R>> combinedRef;
+        private final List<Refreshable<?>> inputs;
+        private final Function<? super List<Object>, R> function;
+
+        /** The {@link RootSubscriberTracker#level} of the combined refreshable. */
+        private final int level;
+
+        @GuardedBy("this")
+        private List<Object> lastValues;
+
+        CombineBridge(
+                List<Refreshable<?>> inputs,
+                Function<? super List<Object>, R> function,
+                List<Object> initialValues,
+                DefaultRefreshable<R> combined) {
+            this.combinedRef = new WeakReference<>(combined);
+            this.inputs = inputs;
+            this.function = function;
+            this.lastValues = initialValues;
+            this.level = combined.rootSubscriberTracker.level;
+        }
+
+        @Override
+        public void accept(Object _value) {
+            Batch batch = ACTIVE_BATCH.get();
+            if (batch == null) {
+                recompute();
+            } else {
+                batch.defer(this);
+            }
+        }
+
+        synchronized void recompute() {
+            DefaultRefreshable<R> combined = combinedRef.get();
+            if (combined == null) {
+                return;
+            }
+            List<Object> values = valuesOf(inputs);
+            if (!sameInstances(values, lastValues)) {
+                lastValues = values;
+                combined.update(function.apply(values));
+            }
+        }
+
+        private static boolean sameInstances(List<Object> values, List<Object> other) {
+            for (int i = 0; i < values.size(); i++) {
+                if (values.get(i) != other.get(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Updates made by a thread running {@link #batch}, which are published once the batch completes. Committing
+     * publishes every staged update before recomputing any combined refreshable which spans several trees, and then
+     * recomputes each of those once, lowest {@link RootSubscriberTracker#level} first, so that they only observe
+     * committed values. Updates made while committing, including those of recomputed combined refreshables, are
+     * staged and published in turn.
+     */
+    private static final class Batch {
+        private final Map<DefaultRefreshable<?>, StagedUpdate<?>> staged = new LinkedHashMap<>();
+        private final NavigableMap<Integer, Set<CombineBridge<?>>> deferred = new TreeMap<>();
+
+        @Nullable
+        private RuntimeException failure;
+
+        @Nullable
+        <T> CompletableFuture<Void> stage(DefaultRefreshable<T> refreshable, Object expected, T value) {
+            StagedUpdate<T> update = staged(refreshable);
+            T previous = update == null ? refreshable.current() : update.value;
+            if (!refreshable.accepts(previous, expected, value)) {
+                return null;
+            }
+            if (update == null) {
+                update = new StagedUpdate<>(refreshable, value);
+                staged.put(refreshable, update);
+            } else {
+                update.value = value;
+            }
+            return update.committed;
+        }
+
+        /** Applies the function to the value staged for the refreshable by this batch, or its current value. */
+        <T> T updateAndGet(DefaultRefreshable<T> refreshable, UnaryOperator<T> function) {
+            StagedUpdate<T> update = staged(refreshable);
+            T previous = update == null ? refreshable.current() : update.value;
+            T next = function.apply(previous);
+            return stage(refreshable, previous, next) == null ? previous : next;
+        }
+
+        @Nullable
+        @SuppressWarnings("unchecked")
+        private <T> StagedUpdate<T> staged(DefaultRefreshable<T> refreshable) {
+            return (StagedUpdate<T>) staged.get(refreshable);
+        }
+
+        void defer(CombineBridge<?> bridge) {
+            deferred.computeIfAbsent(bridge.level, _level -> new LinkedHashSet<>()).add(bridge);
+        }
+
+        void commit() {
+            while (true) {
+                while (!staged.isEmpty()) {
+                    List<StagedUpdate<?>> updates = new ArrayList<>(staged.values());
+                    staged.clear();
+                    for (StagedUpdate<?> update : updates) {
+                        try {
+                            update.publish();
+                        } catch (RuntimeException e) {
+                            update.committed.completeExceptionally(e);
+                            fail(e);
+                        }
+                    }
+                }
+                Map.Entry<Integer, Set<CombineBridge<?>>> lowest = deferred.pollFirstEntry();
+                if (lowest == null) {
+                    break;
+                }
+                for (CombineBridge<?> bridge : lowest.getValue()) {
+                    try {
+                        bridge.recompute();
+                    } catch (RuntimeException e) {
+                        fail(e);
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        /** Cancels the updates staged by a batch which failed before committing. */
+        void discard() {
+            for (StagedUpdate<?> update : staged.values()) {
+                update.committed.cancel(false);
+            }
+            staged.clear();
+            deferred.clear();
+        }
+
+        private void fail(RuntimeException e) {
+            if (failure == null) {
+                failure = e;
+            } else {
+                failure.addSuppressed(e);
+            }
+        }
+    }
+
+    private static final class StagedUpdate<T> {
+        private final DefaultRefreshable<T> refreshable;
+        private final CompletableFuture<Void> committed = new CompletableFuture<>();
+        private T value;
+
+        StagedUpdate(DefaultRefreshable<T> refreshable, T value) {
+            this.refreshable = refreshable;
+            this.value = value;
+        }
+
+        /**
+         * Values which are no longer accepted, because another thread updated the refreshable in the meantime, are
+         * dropped like any other rejected update.
+         */
+        void publish() {
+            CompletableFuture<Void> published = refreshable.publishNow(ANY_VALUE, value);
+            if (published == null) {
+                committed.complete(null);
+            } else {
+                published.whenComplete((_result, throwable) -> {
+                    if (throwable == null) {
+                        committed.complete(null);
+                    } else {
+                        committed.completeExceptionally(throwable);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Stores references to all {@link SideEffectSubscriber} instances, so that they won't be garbage collected until
+     * the whole refreshable tree is collected. Otherwise, derived Refreshables may be GC'd because their only inbound
+     * references could be WeakReferences.
+     */
+    private static final class RootSubscriberTracker {
+        private final Set<SideEffectSubscriber<?>> liveSubscribers = ConcurrentHashMap.newKeySet();
+
+        /**
+         * Held for writing while an update is propagated through the tree, and for reading while registering with any
+         * refreshable in it. A single lock per tree means that recomputing derived refreshables takes no further locks.
+         */
+        private final Lock writeLock;
+
+        private final Lock readLock;
+
+        /** Trackers of the trees a combined refreshable was derived from, which also track its subscribers. */
+        private final List<RootSubscriberTracker> parents;
+
+        /** Non-null if subscribers in this tree are notified on an executor, see {@link DispatchingSubscriber}. */
+        @Nullable
+        private final Executor subscriberExecutor;
+
+        /** Whether updates wait for subscribers which are notified on the executor, see {@link #propagate}. */
+        private final boolean awaitSubscribers;
+
+        /** Zero for trees with a root refreshable, otherwise one more than the highest level of the parents. */
+        private final int level;
+
+        /** Non-null only for trees which fan out updates in parallel, see {@link RefreshableBuilder#parallel}. */
+        @Nullable
+        private final ForkJoinPool fanOutPool;
+
+        /** Non-null only for trees whose root rejects out-of-order updates, see {@link #accepts}. */
+        @Nullable
+        private final ToLongFunction<Object> monotonicVersion;
+
+        /** Reused by updates to this tree, unless one is already in progress. Guarded by the write lock of the tree. */
+        @Nullable
+        private Propagation idlePropagation;
+
+        /**
+         * Odd while the values of this tree are being changed by a propagation, see {@link #snapshot}. Only written by
+         * the propagating thread, while holding the write lock of the tree.
+         */
+        private volatile long epoch;
+
+        /** The thread propagating an update through this tree while the epoch is odd. */
+        @Nullable
+        private volatile Thread propagatingThread;
+
+        RootSubscriberTracker() {
+            this(List.of());
+        }
+
+        RootSubscriberTracker(List<RootSubscriberTracker> parents) {
+            this(parents, null, false, null, null);
+        }
+
+        RootSubscriberTracker(
+                List<RootSubscriberTracker> parents,
+                @Nullable Executor subscriberExecutor,
+                boolean awaitSubscribers,
+                @Nullable ForkJoinPool fanOutPool,
+                @Nullable ToLongFunction<Object> monotonicVersion) {
+            this.parents = parents;
+            this.subscriberExecutor = subscriberExecutor;
+            this.awaitSubscribers = awaitSubscribers;
+            this.fanOutPool = fanOutPool;
+            this.monotonicVersion = monotonicVersion;
+            this.level = parents.stream().mapToInt(parent -> parent.level + 1).max().orElse(0);
+            ReadWriteLock lock = new ReentrantReadWriteLock();
+            this.writeLock = lock.writeLock();
+            this.readLock = lock.readLock();
+        }
+
+        /** Must be called while holding the write lock of the tree, once the root has changed to the given value. */
+        @Nullable
+        <T> CompletableFuture<Void> runPropagation(DefaultRefreshable<T> root, T value) {
+            Propagation propagation = idlePropagation != null ? idlePropagation : new Propagation(fanOutPool);
+            idlePropagation = null;
+            try {
+                return propagation.run(root, value);
+            } finally {
+                idlePropagation = propagation;
+            }
+        }
+
+        @SuppressWarnings("NonAtomicVolatileUpdate") // only written while holding the write lock of the tree
+        void beginChange() {
+            if ((epoch & 1) == 0) {
+                propagatingThread = Thread.currentThread();
+                epoch++;
+            }
+        }
+
+        /** Ends the change if it hasn't already ended, once every refreshable in the tree is up-to-date. */
+        @SuppressWarnings("NonAtomicVolatileUpdate") // only written while holding the write lock of the tree
+        void endChange() {
+            if ((epoch & 1) != 0) {
+                epoch++;
+                propagatingThread = null;
+            }
+        }
+
+        <T> SideEffectSubscriber<? super T> newSideEffectSubscriber(
                 Consumer<? super T> unsafeSubscriber, DefaultRefreshable<T> parent) {
-            SideEffectSubscriber<? super T> freshSubscriber = new SideEffectSubscriber<>(unsafeSubscriber, parent);
-            liveSubscribers.add(freshSubscriber);
+            SideEffectSubscriber<? super T> freshSubscriber = subscriberExecutor == null
+                    ? new SideEffectSubscriber<>(unsafeSubscriber, parent)
+                    : new DispatchingSubscriber<>(unsafeSubscriber, parent, subscriberExecutor, false);
+            track(freshSubscriber);
+            return freshSubscriber;
+        }
+
+        /** Creates a subscriber which is notified on the given executor, regardless of this tree's configuration. */
+        <T> SideEffectSubscriber<? super T> newDispatchingSubscriber(
+                Consumer<? super T> unsafeSubscriber,
+                DefaultRefreshable<T> parent,
+                Executor executor,
+                boolean conflate) {
+            SideEffectSubscriber<? super T> freshSubscriber =
+                    new DispatchingSubscriber<>(unsafeSubscriber, parent, executor, conflate);
+            track(freshSubscriber);
             return freshSubscriber;
         }
 
+        private void track(SideEffectSubscriber<?> subscriber) {
+            liveSubscribers.add(subscriber);
+            for (RootSubscriberTracker parent : parents) {
+                parent.track(subscriber);
+            }
+        }
+
         void deleteReferenceTo(SideEffectSubscriber<?> subscriber) {
             liveSubscribers.remove(subscriber);
+            for (RootSubscriberTracker parent : parents) {
+                parent.deleteReferenceTo(subscriber);
+            }
         }
     }
 
     @VisibleForTesting
     int subscribers() {
-        return orderedSubscribers.size();
+        Subscribers<?> subscribers = orderedSubscribers;
+        return childCount() + (subscribers == null ? 0 : subscribers.size());
     }
 }
@@ -0,0 +1,79 @@
+/*
+ * (c) Copyright 2021 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.refreshable;
+
+import java.util.Objects;
+import java.util.function.Function;
+
+/**
+ * Decides whether a new value of a {@link Refreshable} is equivalent to the previous one, in which case it isn't
+ * propagated to subscribers and derived refreshables. Refreshables use {@link #equality} unless configured otherwise
+ * using {@link RefreshableBuilder#equivalence} or {@link Refreshable#map(Function, Equivalence)}.
+ */
+@FunctionalInterface
+public interface Equivalence<T> {
+
+    /** Returns true if the {@code next} value doesn't need to be propagated after the {@code previous} value. */
+    boolean equivalent(T previous, T next);
+
+    /** Values are equivalent if they are {@link Object#equals equal}. This is the default. */
+    static <T> Equivalence<T> equality() {
+        return Objects::equals;
+    }
+
+    /**
+     * Values are only equivalent if they are the same instance, which avoids comparing large values when the producer
+     * guarantees that a new instance means new content.
+     */
+    static <T> Equivalence<T> identity() {
+        return (previous, next) -> previous == next;
+    }
+
+    /**
+     * Values are equivalent if the keys extracted from them are {@link Object#equals equal}, for example a version or
+     * checksum which identifies the content of a larger value. Null values are only equivalent to themselves.
+     */
+    static <T> Equivalence<T> onKey(Function<? super T, ?> keyExtractor) {
+        return (previous, next) -> previous == next
+                || (previous != null
+                        && next != null
+                        && Objects.equals(keyExtractor.apply(previous), keyExtractor.apply(next)));
+    }
+
+    /**
+     * Values are equivalent if their fingerprints, such as a 64-bit or 128-bit hash of their content, are
+     * {@link Object#equals equal} and the values themselves are equal. Values are only compared in full if their
+     * fingerprints match, and the fingerprint of the previous value is cached, see {@link FingerprintEquivalence}.
+     */
+    static <T> FingerprintEquivalence<T> fingerprint(Function<? super T, ?> fingerprinter) {
+        return new FingerprintEquivalence<>(fingerprinter, true);
+    }
+
+    /**
+     * Values are equivalent if their fingerprints are {@link Object#equals equal}, like {@link #fingerprint}, but
+     * without comparing the values themselves, so an update whose fingerprint collides with that of the previous value
+     * is dropped. Only suitable for fingerprints wide enough for collisions to be negligible.
+     */
+    static <T> FingerprintEquivalence<T> fingerprintWithoutEquals(Function<? super T, ?> fingerprinter) {
+        return new FingerprintEquivalence<>(fingerprinter, false);
+    }
+
+    /** No values are equivalent, so every update is propagated, even if the value didn't change. */
+    static <T> Equivalence<T> alwaysPropagate() {
+        return (_previous, _next) -> false;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * (c) Copyright 2021 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.refreshable;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import javax.annotation.Nullable;
+
+/**
+ * An {@link Equivalence} which compares fingerprints of values, such as a 64-bit or 128-bit hash of their content,
+ * before falling back to {@link Object#equals}. Values with different fingerprints are known to differ without
+ * comparing them in full, which is much cheaper for large values that usually change when updated. Created using
+ * {@link Equivalence#fingerprintWithoutEquals}, values with equal fingerprints are treated as equivalent without
+ * comparing them at all, at the cost of dropping updates whose fingerprint collides with that of the previous value.
+ *
+ * <p>The fingerprint of the value most recently accepted by a refreshable is cached along with it, so each update only
+ * computes the fingerprint of the new value. Instances should therefore be used by a single refreshable, although
+ * sharing them is safe.
+ *
+ * @see Equivalence#fingerprint
+ */
+public final class FingerprintEquivalence<T> implements Equivalence<T> {
+    private final Function<? super T, ?> fingerprinter;
+    private final boolean verifyWithEquals;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    @Nullable
+    private volatile Fingerprinted stored;
+
+    FingerprintEquivalence(Function<? super T, ?> fingerprinter, boolean verifyWithEquals) {
+        this.fingerprinter = fingerprinter;
+        this.verifyWithEquals = verifyWithEquals;
+    }
+
+    @Override
+    public boolean equivalent(T previous, T next) {
+        if (previous == next) {
+            return true;
+        }
+        if (previous == null || next == null) {
+            return false;
+        }
+        Fingerprinted previousFingerprint = fingerprintOf(previous);
+        Fingerprinted nextFingerprint = new Fingerprinted(next, fingerprinter.apply(next));
+        boolean equivalent = Objects.equals(previousFingerprint.fingerprint, nextFingerprint.fingerprint);
+        if (equivalent && verifyWithEquals) {
+            misses.increment();
+            equivalent = previous.equals(next);
+        } else {
+            hits.increment();
+        }
+        // the refreshable keeps the previous value if the next one is equivalent
+        stored = equivalent ? previousFingerprint : nextFingerprint;
+        return equivalent;
+    }
+
+    /**
+     * Returns the number of comparisons decided by fingerprints alone, without calling {@link Object#equals}: those
+     * with different fingerprints, and those with equal fingerprints if created using
+     * {@link Equivalence#fingerprintWithoutEquals}.
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /** Returns the number of comparisons which called {@link Object#equals}, because the fingerprints matched. */
+    public long misses() {
+        return misses.sum();
+    }
+
+    private Fingerprinted fingerprintOf(T value) {
+        Fingerprinted cached = stored;
+        return cached != null && cached.value == value ? cached : new Fingerprinted(value, fingerprinter.apply(value));
+    }
+
+    @Override
+    public String toString() {
+        return "FingerprintEquivalence{hits=" + hits() + ", misses=" + misses() + '}';
+    }
+
+    private static final class Fingerprinted {
+        private final Object value;
+
+        @Nullable
+        private final Object fingerprint;
+
+        Fingerprinted(Object value, @Nullable Object fingerprint) {
+            this.value = value;
+            this.fingerprint = fingerprint;
+        }
+    }
+}
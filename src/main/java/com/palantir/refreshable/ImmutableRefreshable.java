@@ -16,6 +16,8 @@
 
 package com.palantir.refreshable;
 
+import com.palantir.logsafe.exceptions.SafeIllegalStateException;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
@@ -23,9 +25,11 @@ import java.util.function.Function;
 final class ImmutableRefreshable<T> implements Refreshable<T> {
 
     private final T value;
+    private final Versioned<T> versioned;
 
     ImmutableRefreshable(T value) {
         this.value = value;
+        this.versioned = new Versioned<>(value, 0);
     }
 
     @Override
@@ -33,6 +37,40 @@ final class ImmutableRefreshable<T> implements Refreshable<T> {
         return value;
     }
 
+    @Override
+    public long version() {
+        return 0;
+    }
+
+    @Override
+    public Versioned<T> currentWithVersion() {
+        return versioned;
+    }
+
+    /**
+     * The value never changes, so the returned future is only completed with it if the version is negative, and fails
+     * immediately otherwise rather than never completing.
+     */
+    @Override
+    public CompletableFuture<Versioned<T>> nextAsync(long version) {
+        return version < 0
+                ? CompletableFuture.completedFuture(versioned)
+                : CompletableFuture.failedFuture(neverChanges());
+    }
+
+    /** Fails immediately unless the version is negative, rather than blocking forever. */
+    @Override
+    public Versioned<T> awaitNext(long version) {
+        if (version < 0) {
+            return versioned;
+        }
+        throw neverChanges();
+    }
+
+    private static SafeIllegalStateException neverChanges() {
+        return new SafeIllegalStateException("Immutable refreshables never change");
+    }
+
     @Override
     public Disposable subscribe(Consumer<? super T> consumer) {
         consumer.accept(value);
@@ -16,6 +16,12 @@
 
 package com.palantir.refreshable;
 
+import com.palantir.logsafe.exceptions.SafeIllegalStateException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.function.BiFunction;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
@@ -25,6 +31,57 @@ public interface Refreshable<T> extends Supplier<T> {
     /** Returns the most recently updated {@code T} or the initial {code T} if no updates have occurred. */
     T current();
 
+    /**
+     * Returns a number which increases whenever {@link #current} changes, so that callers caching values derived from
+     * it can cheaply check whether they're stale. Versions are only comparable between reads of the same refreshable.
+     * Reading the version of refreshables created by this library costs a single volatile read.
+     *
+     * <p>Implementations which don't track versions return {@link Versioned#UNVERSIONED}, and values read from them are
+     * {@link Versioned#isStale stale} once they hold a different instance.
+     */
+    default long version() {
+        return Versioned.UNVERSIONED;
+    }
+
+    /**
+     * Returns the {@link #current} value together with its {@link #version}, read consistently. Refreshables created
+     * by this library return a snapshot they already hold, so reads don't allocate.
+     */
+    default Versioned<T> currentWithVersion() {
+        return new Versioned<>(current(), version());
+    }
+
+    /**
+     * Returns a future which completes with the {@link #currentWithVersion current value} once its {@link #version} is
+     * greater than the given one, which is immediately if it already is. Only changes which are propagated complete
+     * it, so updates with an equivalent value don't. Waiting doesn't subscribe to this refreshable, so any number of
+     * callers can wait cheaply. Dependent stages run asynchronously, not on the updating thread.
+     *
+     * <p>Unless the version is already greater, implementations which don't track versions complete the future with the
+     * next change after this is called, subscribing to this refreshable until then. Refreshables created using
+     * {@link #only} never change, so the future fails immediately unless the version is negative.
+     */
+    default CompletableFuture<Versioned<T>> nextAsync(long version) {
+        Versioned<T> latest = currentWithVersion();
+        if (latest.version() > version) {
+            return CompletableFuture.completedFuture(latest);
+        }
+        return DefaultRefreshable.nextChange(this);
+    }
+
+    /**
+     * Waits until the {@link #version} of this refreshable is greater than the given one, like {@link #nextAsync},
+     * and returns the {@link #currentWithVersion current value}. Waiting parks the calling thread, so it suits virtual
+     * threads, and doesn't poll. Typically used as a cursor, passing the version of the value returned previously.
+     */
+    default Versioned<T> awaitNext(long version) throws InterruptedException {
+        try {
+            return nextAsync(version).get();
+        } catch (ExecutionException e) {
+            throw new SafeIllegalStateException("Failed to wait for a change", e.getCause());
+        }
+    }
+
     /**
      * Returns the {@link #current} value.
      *
@@ -38,15 +95,134 @@ public interface Refreshable<T> extends Supplier<T> {
     /**
      * Subscribes to changes to {@code T} and invokes the given {@link Consumer} with the {@link #current} T first, and
      * then the modified {@code T} each time a change occurs.
+     *
+     * <p>All refreshables derived from the same root share one lock, so subscribing waits for any update being
+     * propagated through that tree to finish, including running its synchronous subscribers, even if the update doesn't
+     * affect this refreshable. Subscribers of the tree may still subscribe, as they run on the updating thread.
      */
     Disposable subscribe(Consumer<? super T> consumer);
 
+    /**
+     * Subscribes to changes to {@code T} like {@link #subscribe(Consumer)}, but notifies the {@link Consumer} of
+     * changes on the given {@link Executor} so that updates never wait for it. Every change is delivered, in order, and
+     * the consumer is never invoked concurrently with itself. The {@link #current} {@code T} is still delivered on the
+     * calling thread. Disposing the subscription cancels deliveries which haven't started yet.
+     *
+     * <p>Implementations which don't support this notify the consumer like {@link #subscribe(Consumer)}.
+     */
+    default Disposable subscribe(Consumer<? super T> consumer, Executor executor) {
+        return subscribe(consumer);
+    }
+
+    /**
+     * Subscribes to changes to {@code T} like {@link #subscribe(Consumer)}, but notifies the {@link Consumer} of
+     * changes on the given {@link Executor} so that updates never wait for it. If changes occur faster than the
+     * consumer processes them, only the newest pending value is kept, so intermediate values may be skipped, and no
+     * value is delivered twice. The {@link #current} {@code T} is still delivered on the calling thread.
+     *
+     * <p>Implementations which don't support this deliver every change like {@link #subscribe(Consumer)}.
+     */
+    default Disposable subscribeLatest(Consumer<? super T> consumer, Executor executor) {
+        return subscribe(consumer);
+    }
+
     /**
      * Returns a new {@link Refreshable} that handles updates to the {@code R} derived by applying the given
      * {@link Function} to the {@code T} managed by the current {@link Refreshable}.
+     *
+     * <p>Like {@link #subscribe(Consumer)}, mapping waits for any update being propagated through the tree derived from
+     * the same root to finish, including running its synchronous subscribers.
      */
     <R> Refreshable<R> map(Function<? super T, R> function);
 
+    /**
+     * Returns a new {@link Refreshable} like {@link #map(Function)}, except that the function isn't applied when this
+     * refreshable changes, but when the derived value is next read, so values which are never read are never computed.
+     * Each value is computed at most once, even if several threads read it concurrently. The function is still applied
+     * eagerly while the derived refreshable has subscribers, derived refreshables or callers waiting for it to change,
+     * as they need its value anyway.
+     *
+     * <p>Implementations which don't support this apply the function eagerly like {@link #map(Function)}.
+     */
+    default <R> Refreshable<R> lazyMap(Function<? super T, R> function) {
+        return map(function);
+    }
+
+    /**
+     * Returns a new {@link Refreshable} like {@link #map(Function)}, which only notifies its subscribers of derived
+     * values which aren't equivalent to the previous one according to the given {@link Equivalence}.
+     */
+    default <R> Refreshable<R> map(Function<? super T, R> function, Equivalence<? super R> equivalence) {
+        return map(function);
+    }
+
+    /**
+     * Returns a {@link Refreshable} like {@link #map(Function)}, but shares it between callers passing an equal key:
+     * while the refreshable returned for a key is still referenced, later calls with that key return it rather than
+     * deriving another refreshable, and the function is ignored. The key must therefore identify the function, for
+     * example {@code map("timeouts", Config::timeouts)}. Refreshables which are no longer referenced are still garbage
+     * collected, after which the key derives a new one.
+     *
+     * <p>Implementations which don't support this derive a new refreshable on each call like {@link #map(Function)}.
+     */
+    default <R> Refreshable<R> map(Object key, Function<? super T, R> function) {
+        return map(function);
+    }
+
+    /**
+     * Returns a new {@link Refreshable} that handles updates to the {@code R} derived by applying the given
+     * {@link BiFunction} to the {@code A} and {@code B} managed by the given {@link Refreshable refreshables}.
+     *
+     * @see #combine(List, Function)
+     */
+    @SuppressWarnings("unchecked")
+    static <A, B, R> Refreshable<R> combine(
+            Refreshable<A> first, Refreshable<B> second, BiFunction<? super A, ? super B, R> function) {
+        return DefaultRefreshable.combine(
+                List.of(first, second), values -> function.apply((A) values.get(0), (B) values.get(1)));
+    }
+
+    /**
+     * Returns a new {@link Refreshable} that handles updates to the {@code R} derived by applying the given
+     * {@link Function} to the values managed by the given {@link Refreshable refreshables}, in the same order. The
+     * function is applied at most once per update, after all of the inputs derived from the updated refreshable have
+     * been recomputed, and subscribers are only notified if the result changed. The result is immutable if all of
+     * the inputs were created using {@link #only}.
+     */
+    @SuppressWarnings("unchecked")
+    static <T, R> Refreshable<R> combine(
+            List<? extends Refreshable<? extends T>> refreshables, Function<? super List<T>, R> function) {
+        return DefaultRefreshable.combine(refreshables, values -> function.apply((List<T>) values));
+    }
+
+    /**
+     * Returns the values of the given {@link Refreshable refreshables}, in the same order, as of a single point in
+     * time: derived refreshables hold the values derived from the root values which are returned alongside them, even
+     * if an update is being propagated concurrently. Reads are retried rather than blocking updates, so this is cheap
+     * while updates are rare. Refreshables combined from several trees using {@link #combine} are updated by a
+     * separate propagation, after their inputs. Functions passed to {@link #map} must not take snapshots of their own
+     * tree if it was built with {@link RefreshableBuilder#parallel}, as they would wait for their own propagation.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> List<T> snapshot(List<? extends Refreshable<? extends T>> refreshables) {
+        return (List<T>) DefaultRefreshable.snapshot(refreshables);
+    }
+
+    /**
+     * Runs the given updates as a single batch: updates which the current thread makes to {@link SettableRefreshable
+     * settable} refreshables are staged, and only published once the updates have completed. Refreshables combined
+     * from several of the updated refreshables using {@link #combine} are then recomputed once, from the committed
+     * values, rather than once per update. If the updates throw, nothing is published.
+     *
+     * <p>While the batch runs, {@link #current} still returns the values from before it started, while
+     * {@link SettableRefreshable#compareAndUpdate} and {@link SettableRefreshable#updateAndGet} operate on the values
+     * staged by the batch. Futures returned by {@link SettableRefreshable#updateAsync} complete once the staged value
+     * has been propagated. Nested batches join the outermost one.
+     */
+    static void batch(Runnable updates) {
+        DefaultRefreshable.batch(updates);
+    }
+
     static <T> Refreshable<T> only(T only) {
         return new ImmutableRefreshable<>(only);
     }
@@ -55,4 +231,9 @@ public interface Refreshable<T> extends Supplier<T> {
     static <T> SettableRefreshable<T> create(T initial) {
         return new DefaultRefreshable<T>(initial);
     }
+
+    /** Returns a {@link RefreshableBuilder} for a mutable root {@link Refreshable} with the given initial value. */
+    static <T> RefreshableBuilder<T> builder(T initial) {
+        return new RefreshableBuilder<>(initial);
+    }
 }
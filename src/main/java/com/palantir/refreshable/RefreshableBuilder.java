@@ -0,0 +1,222 @@
+/*
+ * (c) Copyright 2021 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.refreshable;
+
+import com.palantir.logsafe.Preconditions;
+import com.palantir.logsafe.SafeArg;
+import com.palantir.logsafe.exceptions.SafeIllegalStateException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.ToLongFunction;
+import javax.annotation.Nullable;
+
+/**
+ * Creates a mutable root {@link SettableRefreshable} with non-default behavior. Use {@link Refreshable#create} when
+ * the defaults suffice.
+ */
+public final class RefreshableBuilder<T> {
+    private final T initial;
+    private boolean latestWins = false;
+
+    @Nullable
+    private Executor executor;
+
+    private int maxPendingUpdates;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.REJECT;
+    private Equivalence<? super T> equivalence = Equivalence.equality();
+
+    @Nullable
+    private ForkJoinPool fanOutPool;
+
+    @Nullable
+    private Executor subscriberExecutor;
+
+    private boolean awaitSubscribers = false;
+
+    @Nullable
+    private ToLongFunction<? super T> monotonicVersion;
+
+    RefreshableBuilder(T initial) {
+        this.initial = initial;
+    }
+
+    /**
+     * When enabled, {@link SettableRefreshable#update} publishes the new value to {@link Refreshable#current}
+     * immediately, but returns without notifying subscribers if another thread is already doing so. That thread
+     * propagates only the newest value once its current propagation completes, so concurrent writers are never
+     * blocked by slow subscribers, and subscribers may not observe intermediate values. Futures returned by
+     * {@link SettableRefreshable#updateAsync} complete once the value, or a newer one which superseded it, has been
+     * propagated. Disabled by default.
+     */
+    public RefreshableBuilder<T> latestWins(boolean enabled) {
+        this.latestWins = enabled;
+        return this;
+    }
+
+    /**
+     * Propagates updates to subscribers and derived refreshables on the given executor rather than the updating thread.
+     * {@link SettableRefreshable#update} publishes the new value to {@link Refreshable#current} and returns
+     * immediately, and {@link SettableRefreshable#updateAsync} returns a future which completes once the whole derived
+     * tree has observed the value. Updates are propagated one at a time in the order they were made.
+     *
+     * <p>At most {@code maxPendingUpdates} updates may be waiting to be propagated; the {@link OverflowPolicy} decides
+     * what happens to further updates. Cannot be combined with {@link #latestWins}.
+     */
+    public RefreshableBuilder<T> executor(Executor value, int maxPendingUpdates, OverflowPolicy policy) {
+        Preconditions.checkArgument(
+                maxPendingUpdates > 0,
+                "maxPendingUpdates must be positive",
+                SafeArg.of("maxPendingUpdates", maxPendingUpdates));
+        this.executor = Preconditions.checkNotNull(value, "executor");
+        this.maxPendingUpdates = maxPendingUpdates;
+        this.overflowPolicy = Preconditions.checkNotNull(policy, "policy");
+        return this;
+    }
+
+    /**
+     * Only updates which aren't equivalent to the previous value according to the given {@link Equivalence} are
+     * propagated to subscribers and derived refreshables. Defaults to {@link Equivalence#equality}.
+     */
+    public RefreshableBuilder<T> equivalence(Equivalence<? super T> value) {
+        this.equivalence = Preconditions.checkNotNull(value, "equivalence");
+        return this;
+    }
+
+    /**
+     * Fans out updates across the given pool: derived refreshables at the same depth of the tree are recomputed in
+     * parallel, with depths processed in order. Side-effect subscribers still run on the updating thread once every
+     * derived refreshable is up-to-date, in order of depth and then registration, so they may subscribe to and map the
+     * tree as usual. Mapping functions run on the pool while the tree is locked, so they must not update, subscribe to
+     * or map the tree, which would deadlock. Disabled by default.
+     */
+    public RefreshableBuilder<T> parallel(ForkJoinPool pool) {
+        this.fanOutPool = Preconditions.checkNotNull(pool, "pool");
+        return this;
+    }
+
+    /**
+     * Notifies side-effect subscribers of updates on the given executor rather than the updating thread, so that slow
+     * or blocking subscribers neither delay the rest of the update nor hold any locks. Each subscriber is notified of
+     * values one at a time in the order they were propagated, while different subscribers may run concurrently. The
+     * initial value is still delivered by {@link Refreshable#subscribe} on the calling thread.
+     *
+     * <p>If {@code awaitSubscribers} is true, {@link SettableRefreshable#update} only returns once all subscribers have
+     * observed the value, waiting after locks have been released. Subscribers must then not update the same
+     * refreshable, which would wait for the subscriber itself. Disabled by default.
+     */
+    public RefreshableBuilder<T> subscriberExecutor(Executor value, boolean await) {
+        this.subscriberExecutor = Preconditions.checkNotNull(value, "subscriberExecutor");
+        this.awaitSubscribers = await;
+        return this;
+    }
+
+    /**
+     * Notifies each side-effect subscriber of updates on virtual threads, see {@link #subscriberExecutor}, so that
+     * blocking subscribers don't tie up platform threads. Requires Java 21 or later.
+     */
+    public RefreshableBuilder<T> virtualThreadSubscribers(boolean await) {
+        return subscriberExecutor(newVirtualThreadPerTaskExecutor(), await);
+    }
+
+    /**
+     * Rejects updates whose version, as computed by the given function, is lower than that of the current value, so
+     * that pollers racing to publish what they fetched can't replace a newer value with an older one. Rejected updates
+     * are dropped before any propagation work happens: {@link SettableRefreshable#update} returns without effect, and
+     * {@link SettableRefreshable#compareAndUpdate} returns false. Updates of the same version are subject to the
+     * {@link #equivalence} as usual. Disabled by default.
+     */
+    public RefreshableBuilder<T> monotonicVersion(ToLongFunction<? super T> version) {
+        this.monotonicVersion = Preconditions.checkNotNull(version, "version");
+        return this;
+    }
+
+    public SettableRefreshable<T> build() {
+        Preconditions.checkArgument(!latestWins || executor == null, "latestWins cannot be combined with an executor");
+        return DefaultRefreshable.root(this);
+    }
+
+    T initial() {
+        return initial;
+    }
+
+    boolean latestWins() {
+        return latestWins;
+    }
+
+    @Nullable
+    Executor executor() {
+        return executor;
+    }
+
+    int maxPendingUpdates() {
+        return maxPendingUpdates;
+    }
+
+    OverflowPolicy overflowPolicy() {
+        return overflowPolicy;
+    }
+
+    Equivalence<? super T> equivalence() {
+        return equivalence;
+    }
+
+    @Nullable
+    ForkJoinPool fanOutPool() {
+        return fanOutPool;
+    }
+
+    @Nullable
+    Executor subscriberExecutor() {
+        return subscriberExecutor;
+    }
+
+    boolean awaitSubscribers() {
+        return awaitSubscribers;
+    }
+
+    @Nullable
+    ToLongFunction<? super T> monotonicVersion() {
+        return monotonicVersion;
+    }
+
+    /** Looked up reflectively, as this library is compiled for Java versions without virtual threads. */
+    private static Executor newVirtualThreadPerTaskExecutor() {
+        try {
+            return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException e) {
+            throw new SafeIllegalStateException("Virtual threads require Java 21 or later", e);
+        } catch (ReflectiveOperationException e) {
+            throw new SafeIllegalStateException("Failed to create a virtual thread executor", e);
+        }
+    }
+
+    /** Decides what happens to an update made while the maximum number of updates are waiting to be propagated. */
+    public enum OverflowPolicy {
+        /**
+         * The update is rejected by throwing a {@link java.util.concurrent.RejectedExecutionException}, and the current
+         * value is left unchanged.
+         */
+        REJECT,
+
+        /**
+         * The oldest update which is waiting to be propagated is discarded, and the future returned by its
+         * {@link SettableRefreshable#updateAsync} call is cancelled.
+         */
+        DISCARD_OLDEST
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * (c) Copyright 2021 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.refreshable;
+
+import com.palantir.logsafe.Preconditions;
+import com.palantir.logsafe.SafeArg;
+import com.palantir.logsafe.exceptions.SafeIllegalArgumentException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Adapts {@link Refreshable refreshables} to and from {@link Flow} publishers and subscribers. */
+public final class RefreshableFlow {
+    private static final Logger log = LoggerFactory.getLogger(RefreshableFlow.class);
+
+    private RefreshableFlow() {}
+
+    /**
+     * Returns a {@link Flow.Publisher} which publishes the {@link Refreshable#current current} value of the given
+     * refreshable to each {@link Flow.Subscriber}, followed by every subsequent change. Values are only published on
+     * demand: while a subscriber hasn't requested more, only the latest change is retained, replacing earlier ones,
+     * so slow subscribers skip intermediate values rather than buffering them. Null values are not published.
+     *
+     * <p>Each subscription {@link Refreshable#subscribe subscribes} to the refreshable, keeping it reachable until the
+     * subscription is {@link Flow.Subscription#cancel cancelled}, which {@link Disposable#dispose disposes} it. The
+     * publisher never completes.
+     */
+    public static <T> Flow.Publisher<T> publisher(Refreshable<T> refreshable) {
+        Preconditions.checkNotNull(refreshable, "refreshable");
+        return subscriber -> {
+            RefreshableSubscription<T> subscription =
+                    new RefreshableSubscription<>(Preconditions.checkNotNull(subscriber, "subscriber"));
+            subscriber.onSubscribe(subscription);
+            subscription.start(refreshable);
+        };
+    }
+
+    /**
+     * Returns a {@link Flow.Subscriber} which {@link SettableRefreshable#update updates} the given refreshable with the
+     * items it receives. It requests one item at a time, only once the previous one has been propagated, so a
+     * refreshable built with {@link RefreshableBuilder#executor} applies backpressure to the publisher. Errors are
+     * logged, and the refreshable keeps its latest value once the publisher terminates.
+     */
+    public static <T> Flow.Subscriber<T> subscriber(SettableRefreshable<T> refreshable) {
+        return new RefreshableSubscriber<>(Preconditions.checkNotNull(refreshable, "refreshable"));
+    }
+
+    /**
+     * Conflates changes into a single slot which is drained whenever there is demand. Signals to the subscriber are
+     * serialized by the drain loop, regardless of which thread updated the refreshable or requested more items.
+     */
+    private static final class RefreshableSubscription<T> implements Flow.Subscription, Consumer<T> {
+        private final Flow.Subscriber<? super T> subscriber;
+        private final AtomicReference<T> latest = new AtomicReference<>();
+        private final AtomicLong requested = new AtomicLong();
+
+        /** Number of drain requests which haven't been handled yet, non-zero while a thread is draining. */
+        private final AtomicInteger pendingDrains = new AtomicInteger();
+
+        private volatile boolean cancelled = false;
+
+        @Nullable
+        private volatile Throwable failure;
+
+        @Nullable
+        private volatile Disposable subscription;
+
+        RefreshableSubscription(Flow.Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        void start(Refreshable<T> refreshable) {
+            if (cancelled) {
+                return;
+            }
+            subscription = refreshable.subscribe(this);
+            if (cancelled) {
+                // Cancelled while subscribing, in which case cancel couldn't dispose the subscription yet.
+                dispose();
+            }
+        }
+
+        @Override
+        public void accept(T value) {
+            latest.set(value);
+            drain();
+        }
+
+        @Override
+        public void request(long count) {
+            if (count <= 0) {
+                failure = new SafeIllegalArgumentException(
+                        "Flow subscribers must request a positive number of items", SafeArg.of("count", count));
+            } else {
+                requested.accumulateAndGet(count, (current, added) -> {
+                    long sum = current + added;
+                    return sum < 0 ? Long.MAX_VALUE : sum;
+                });
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            dispose();
+            latest.set(null);
+        }
+
+        private void dispose() {
+            Disposable disposable = subscription;
+            if (disposable != null) {
+                disposable.dispose();
+            }
+        }
+
+        private void drain() {
+            if (pendingDrains.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                emit();
+                missed = pendingDrains.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void emit() {
+            while (!cancelled) {
+                Throwable error = failure;
+                if (error != null) {
+                    cancel();
+                    subscriber.onError(error);
+                    return;
+                }
+                if (requested.get() == 0) {
+                    return;
+                }
+                T value = latest.getAndSet(null);
+                if (value == null) {
+                    return;
+                }
+                if (requested.get() != Long.MAX_VALUE) {
+                    requested.decrementAndGet();
+                }
+                try {
+                    subscriber.onNext(value);
+                } catch (RuntimeException e) {
+                    log.error("Flow subscriber failed to handle an item, cancelling its subscription", e);
+                    cancel();
+                }
+            }
+        }
+    }
+
+    private static final class RefreshableSubscriber<T> implements Flow.Subscriber<T> {
+        private final SettableRefreshable<T> refreshable;
+
+        @Nullable
+        private volatile Flow.Subscription subscription;
+
+        RefreshableSubscriber(SettableRefreshable<T> refreshable) {
+            this.refreshable = refreshable;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription value) {
+            if (subscription != null) {
+                // A subscriber may only be subscribed to a single publisher at once.
+                value.cancel();
+                return;
+            }
+            subscription = value;
+            value.request(1);
+        }
+
+        @Override
+        @SuppressWarnings("FutureReturnValueIgnored")
+        public void onNext(T item) {
+            Flow.Subscription upstream = Preconditions.checkNotNull(subscription, "onNext before onSubscribe");
+            try {
+                refreshable.updateAsync(item).whenComplete((_result, _throwable) -> upstream.request(1));
+            } catch (RuntimeException e) {
+                log.warn("Failed to update refreshable from a Flow publisher, skipping the item", e);
+                upstream.request(1);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            log.warn("Flow publisher feeding a refreshable failed, keeping its latest value", throwable);
+        }
+
+        @Override
+        public void onComplete() {}
+    }
+}
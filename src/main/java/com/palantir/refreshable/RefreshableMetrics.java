@@ -0,0 +1,40 @@
+/*
+ * (c) Copyright 2021 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.refreshable;
+
+/**
+ * Process-wide counters describing how the registrations of garbage collected derived refreshables are reclaimed,
+ * intended to be exported as metrics.
+ */
+public final class RefreshableMetrics {
+    private RefreshableMetrics() {}
+
+    /**
+     * Number of refreshables derived using {@link Refreshable#map} which the garbage collector has reported as
+     * collected, but which are still registered with the refreshable they were derived from. They're pruned in batches,
+     * once they make up half of that refreshable's children or when it next changes, so a value which keeps growing
+     * indicates that refreshables are derived far faster than they're updated.
+     */
+    public static long pendingDeadChildren() {
+        return DefaultRefreshable.pendingDeadChildren();
+    }
+
+    /** Total number of collected derived refreshables whose registrations have been pruned. */
+    public static long prunedDeadChildren() {
+        return DefaultRefreshable.prunedDeadChildren();
+    }
+}
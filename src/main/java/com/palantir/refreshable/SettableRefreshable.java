@@ -16,6 +16,9 @@
 
 package com.palantir.refreshable;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.function.UnaryOperator;
+
 /**
  * A {@link Refreshable} value which can be updated by calling the {@link #update} method. It is expected that you
  * only have one root SettableRefreshable, and all other refreshables are derived from this using
@@ -28,4 +31,52 @@ public interface SettableRefreshable<T> extends Refreshable<T> {
      * subscribers may run on the same thread. Successive calls to {@link Refreshable#get()} will return this value.
      */
     void update(T value);
+
+    /**
+     * Replaces the value stored in this refreshable with a new value like {@link #update}, returning a future which
+     * completes once all subscribers and derived refreshables have observed the value. Unless the refreshable was built
+     * with {@link RefreshableBuilder#executor}, subscribers run on the calling thread and the returned future is
+     * already complete.
+     */
+    default CompletableFuture<Void> updateAsync(T value) {
+        update(value);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Replaces the value stored in this refreshable with {@code next} like {@link #update}, but only if the current
+     * value is {@code expected}, compared by identity. Returns false without changing the value otherwise, or if the
+     * update is rejected by {@link RefreshableBuilder#monotonicVersion}.
+     *
+     * <p>The default implementation is only atomic with respect to other calls to this method. It holds a private lock
+     * rather than the monitor of this refreshable, so callers synchronizing on it can't block or deadlock with it.
+     */
+    default boolean compareAndUpdate(T expected, T next) {
+        synchronized (DefaultRefreshable.compareAndUpdateLock(this)) {
+            if (current() != expected) {
+                return false;
+            }
+            update(next);
+            return true;
+        }
+    }
+
+    /**
+     * Atomically replaces the current value with the result of applying the given function to it, and returns the
+     * result. If another update happens concurrently, the function is applied again to the newer value, so it may be
+     * invoked several times and should be free of side effects. If the result is rejected by
+     * {@link RefreshableBuilder#monotonicVersion}, the value is left unchanged and returned instead.
+     */
+    default T updateAndGet(UnaryOperator<T> function) {
+        while (true) {
+            T previous = current();
+            T next = function.apply(previous);
+            if (compareAndUpdate(previous, next)) {
+                return next;
+            }
+            if (current() == previous) {
+                return previous;
+            }
+        }
+    }
 }
@@ -0,0 +1,83 @@
+/*
+ * (c) Copyright 2021 Palantir Technologies Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.palantir.refreshable;
+
+import java.util.Objects;
+import javax.annotation.Nullable;
+
+/**
+ * A value of a {@link Refreshable} together with its {@link Refreshable#version version}, see
+ * {@link Refreshable#currentWithVersion}.
+ */
+public final class Versioned<T> {
+    /**
+     * The version of refreshables which don't track versions, see {@link Refreshable#version}. Refreshables created by
+     * this library never have negative versions.
+     */
+    public static final long UNVERSIONED = -1;
+
+    private final T value;
+    private final long version;
+
+    Versioned(T value, long version) {
+        this.value = value;
+        this.version = version;
+    }
+
+    public T value() {
+        return value;
+    }
+
+    public long version() {
+        return version;
+    }
+
+    /**
+     * Returns whether the refreshable this was read from has changed since, which costs a single volatile read. Values
+     * read from refreshables which don't track versions are stale once the refreshable holds a different instance.
+     */
+    public boolean isStale(Refreshable<?> refreshable) {
+        return version == UNVERSIONED ? refreshable.current() != value : refreshable.version() != version;
+    }
+
+    /** Returns the next version of the same refreshable, holding the given value. */
+    Versioned<T> next(T nextValue) {
+        return new Versioned<>(nextValue, version + 1);
+    }
+
+    @Override
+    public boolean equals(@Nullable Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof Versioned)) {
+            return false;
+        }
+        Versioned<?> that = (Versioned<?>) other;
+        return version == that.version && Objects.equals(value, that.value);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(value, version);
+    }
+
+    @Override
+    public String toString() {
+        return "Versioned{value=" + value + ", version=" + version + '}';
+    }
+}
@@ -17,8 +17,11 @@
 package com.palantir.refreshable;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
+import com.palantir.logsafe.exceptions.SafeIllegalStateException;
 import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.EnumSource;
 
@@ -71,6 +74,15 @@ class ImmutableRefreshableTest {
         assertThat(toNull.current()).isEqualTo(toNull.get()).isNull();
     }
 
+    @Test
+    void testAwaitNextFailsFast() throws InterruptedException {
+        Refreshable<String> refreshable = Refreshable.only("initial");
+        assertThat(refreshable.awaitNext(-1).value()).isEqualTo("initial");
+        assertThatThrownBy(() -> refreshable.awaitNext(refreshable.version()))
+                .isInstanceOf(SafeIllegalStateException.class);
+        assertThat(refreshable.nextAsync(refreshable.version())).isCompletedExceptionally();
+    }
+
     enum RefreshableFactory {
         IMMUTABLE() {
             @Override
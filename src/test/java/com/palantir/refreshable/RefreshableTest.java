@@ -20,20 +20,35 @@ import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatCode;
 import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.palantir.logsafe.exceptions.SafeIllegalArgumentException;
 import java.lang.ref.WeakReference;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
 import java.util.function.Supplier;
 import org.awaitility.Awaitility;
 import org.immutables.value.Value;
@@ -43,6 +58,9 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.openjdk.jol.info.GraphLayout;
+import org.openjdk.jol.vm.VM;
+import org.openjdk.jol.vm.VirtualMachine;
 
 @SuppressWarnings("UnusedVariable")
 @ExtendWith(MockitoExtension.class)
@@ -225,6 +243,30 @@ public final class RefreshableTest {
         assertThat(counter.get()).isEqualTo(2);
     }
 
+    @Test
+    public void testRefreshable_mappingsGetUpdatedFirst_evenIfMappedAfterSubscribing() {
+        DefaultRefreshable<Integer> instance = new DefaultRefreshable<>(1);
+        AtomicReference<Refreshable<Integer>> refreshablePlusOne = new AtomicReference<>(instance);
+        List<Integer> seen = new CopyOnWriteArrayList<>();
+        instance.subscribe(i -> seen.add(refreshablePlusOne.get().get() - i));
+        refreshablePlusOne.set(instance.map(i -> i + 1).map(i -> i));
+        instance.update(5);
+        assertThat(seen).containsExactly(0, 1);
+    }
+
+    @Test
+    public void testDiamond_subscribersObserveConsistentTree() {
+        SettableRefreshable<Integer> root = Refreshable.create(1);
+        Refreshable<Integer> left = root.map(i -> i + 1);
+        Refreshable<Integer> right = root.map(i -> i * 2).map(i -> i);
+        List<String> joined = new CopyOnWriteArrayList<>();
+        left.subscribe(value -> joined.add(value + "/" + right.current()));
+        right.subscribe(value -> joined.add(left.current() + "/" + value));
+
+        root.update(5);
+        assertThat(joined).containsExactly("2/2", "2/2", "6/10", "6/10");
+    }
+
     @Test
     @SuppressWarnings({"UnusedVariable", "StrictUnusedVariable"})
     public void map_on_grandchild_still_works_if_intermediaries_are_no_longer_externally_referenced() {
@@ -353,6 +395,266 @@ public final class RefreshableTest {
         root.update(1);
     }
 
+    @Test
+    public void testDisposeDuringUpdate_remainingSubscribersSeeUpdate() {
+        DefaultRefreshable<Integer> root = new DefaultRefreshable<>(1);
+        AtomicReference<Disposable> second = new AtomicReference<>();
+        AtomicInteger lastSeen = new AtomicInteger();
+        root.subscribe(value -> {
+            if (value == 2) {
+                second.get().dispose();
+            }
+        });
+        second.set(root.subscribe(lastSeen::set));
+        assertThat(root.subscribers()).isEqualTo(2);
+
+        root.update(2);
+        assertThat(lastSeen).hasValue(2);
+        assertThat(root.subscribers()).isOne();
+
+        root.update(3);
+        assertThat(lastSeen).hasValue(2);
+    }
+
+    @Test
+    public void testLatestWins_writersDoNotWaitForSlowSubscribers() throws InterruptedException {
+        SettableRefreshable<Integer> root = Refreshable.builder(1).latestWins(true).build();
+        Refreshable<Integer> mapped = root.map(i -> i * 10);
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Integer> seen = new CopyOnWriteArrayList<>();
+        root.subscribe(value -> {
+            seen.add(value);
+            if (value == 2) {
+                blocked.countDown();
+                Uninterruptibles.awaitUninterruptibly(release);
+            }
+        });
+
+        Thread drainer = new Thread(() -> root.update(2));
+        drainer.start();
+        assertThat(blocked.await(5, TimeUnit.SECONDS)).isTrue();
+
+        // These return immediately despite the drainer being blocked within a subscriber.
+        root.update(3);
+        root.update(4);
+        assertThat(root.current()).isEqualTo(4);
+        assertThat(mapped.current()).isEqualTo(20);
+
+        release.countDown();
+        drainer.join();
+        assertThat(seen).containsExactly(1, 2, 4);
+        assertThat(mapped.current()).isEqualTo(40);
+    }
+
+    @Test
+    public void testLatestWins_updateAsyncCompletesOnceSupersedingValueIsPropagated() throws Exception {
+        SettableRefreshable<Integer> root = Refreshable.builder(1).latestWins(true).build();
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger lastSeen = new AtomicInteger();
+        root.subscribe(value -> {
+            if (value == 2) {
+                blocked.countDown();
+                Uninterruptibles.awaitUninterruptibly(release);
+            }
+            lastSeen.set(value);
+        });
+
+        Thread drainer = new Thread(() -> root.update(2));
+        drainer.start();
+        assertThat(blocked.await(5, TimeUnit.SECONDS)).isTrue();
+
+        CompletableFuture<Void> third = root.updateAsync(3);
+        CompletableFuture<Void> fourth = root.updateAsync(4);
+        assertThat(third).isNotDone();
+        assertThat(fourth).isNotDone();
+
+        release.countDown();
+        fourth.get(5, TimeUnit.SECONDS);
+        third.get(5, TimeUnit.SECONDS);
+        assertThat(lastSeen).hasValue(4);
+        drainer.join();
+    }
+
+    @Test
+    public void testLatestWins_failedPropagationDoesNotStrandLaterUpdates() throws Exception {
+        SettableRefreshable<Integer> root = Refreshable.builder(1).latestWins(true).build();
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Refreshable<Integer> mapped = root.map(value -> {
+            if (value == 2) {
+                blocked.countDown();
+                Uninterruptibles.awaitUninterruptibly(release);
+                // Errors escape the propagation, unlike exceptions which are logged.
+                throw new AssertionError("failed");
+            }
+            return value * 10;
+        });
+
+        CompletableFuture<Void> failed = CompletableFuture.runAsync(() -> root.update(2));
+        assertThat(blocked.await(5, TimeUnit.SECONDS)).isTrue();
+        CompletableFuture<Void> later = root.updateAsync(3);
+
+        release.countDown();
+        assertThatThrownBy(() -> failed.get(5, TimeUnit.SECONDS)).hasRootCauseMessage("failed");
+        later.get(5, TimeUnit.SECONDS);
+        assertThat(mapped.current()).isEqualTo(30);
+
+        root.update(4);
+        assertThat(mapped.current()).isEqualTo(40);
+    }
+
+    @Test
+    public void testSlowMap_doesNotBlockUpdates() throws Exception {
+        SettableRefreshable<Integer> root = Refreshable.create(1);
+        CountDownLatch mapping = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Refreshable<Integer>> mapped = CompletableFuture.supplyAsync(() -> root.map(value -> {
+            if (value == 1) {
+                mapping.countDown();
+                Uninterruptibles.awaitUninterruptibly(release);
+            }
+            return value * 10;
+        }));
+        assertThat(mapping.await(5, TimeUnit.SECONDS)).isTrue();
+
+        root.update(2);
+        release.countDown();
+
+        // The stale initial value is discarded because the update raced with registration.
+        assertThat(mapped.get(5, TimeUnit.SECONDS).current()).isEqualTo(20);
+        root.update(3);
+        assertThat(mapped.get().current()).isEqualTo(30);
+    }
+
+    @Test
+    public void testSlowSubscriber_doesNotBlockUpdates() throws Exception {
+        SettableRefreshable<Integer> root = Refreshable.create(1);
+        CountDownLatch subscribing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Integer> seen = new CopyOnWriteArrayList<>();
+        CompletableFuture<Disposable> subscription = CompletableFuture.supplyAsync(() -> root.subscribe(value -> {
+            seen.add(value);
+            if (value == 1) {
+                subscribing.countDown();
+                Uninterruptibles.awaitUninterruptibly(release);
+            }
+        }));
+        assertThat(subscribing.await(5, TimeUnit.SECONDS)).isTrue();
+
+        root.update(2);
+        release.countDown();
+        subscription.get(5, TimeUnit.SECONDS);
+
+        root.update(3);
+        assertThat(seen).containsExactly(1, 2, 3);
+    }
+
+    @Test
+    public void testUpdateAsync_propagatesOnExecutor() {
+        SettableRefreshable<Integer> root = Refreshable.builder(1)
+                .executor(scheduler, 10, RefreshableBuilder.OverflowPolicy.REJECT)
+                .build();
+        Refreshable<Integer> mapped = root.map(i -> i * 10);
+        List<Integer> seen = new CopyOnWriteArrayList<>();
+        mapped.subscribe(seen::add);
+
+        CompletableFuture<Void> first = root.updateAsync(2);
+        root.update(3);
+        CompletableFuture<Void> last = root.updateAsync(4);
+        assertThat(root.current()).isEqualTo(4);
+        assertThat(mapped.current()).isEqualTo(10);
+        assertThat(first).isNotDone();
+
+        scheduler.runUntilIdle();
+        assertThat(first).isCompleted();
+        assertThat(last).isCompleted();
+        assertThat(mapped.current()).isEqualTo(40);
+        assertThat(seen).containsExactly(10, 20, 30, 40);
+    }
+
+    @Test
+    public void testUpdateAsync_rejectsOverflow() {
+        SettableRefreshable<Integer> root = Refreshable.builder(1)
+                .executor(scheduler, 1, RefreshableBuilder.OverflowPolicy.REJECT)
+                .build();
+        CompletableFuture<Void> accepted = root.updateAsync(2);
+        assertThatThrownBy(() -> root.updateAsync(3)).isInstanceOf(RejectedExecutionException.class);
+        assertThat(root.current()).isEqualTo(2);
+
+        scheduler.runUntilIdle();
+        assertThat(accepted).isCompleted();
+    }
+
+    @Test
+    public void testUpdateAsync_revertsUpdatesWhichCannotBeScheduled() {
+        AtomicInteger attempts = new AtomicInteger();
+        SettableRefreshable<Integer> root = Refreshable.builder(1)
+                .executor(
+                        task -> {
+                            if (attempts.getAndIncrement() == 0) {
+                                throw new RejectedExecutionException("shut down");
+                            }
+                            scheduler.execute(task);
+                        },
+                        10,
+                        RefreshableBuilder.OverflowPolicy.REJECT)
+                .build();
+        List<Integer> seen = new CopyOnWriteArrayList<>();
+        root.subscribe(seen::add);
+
+        assertThatThrownBy(() -> root.updateAsync(2)).isInstanceOf(RejectedExecutionException.class);
+        assertThat(root.current()).isEqualTo(1);
+
+        CompletableFuture<Void> next = root.updateAsync(3);
+        scheduler.runUntilIdle();
+        assertThat(next).isCompleted();
+        assertThat(seen).containsExactly(1, 3);
+    }
+
+    @Test
+    public void testUpdateAsync_keepsDrainingAfterSubscriberError() {
+        SettableRefreshable<Integer> root = Refreshable.builder(1)
+                .executor(scheduler, 10, RefreshableBuilder.OverflowPolicy.REJECT)
+                .build();
+        List<Integer> seen = new CopyOnWriteArrayList<>();
+        root.subscribe(value -> {
+            if (value == 2) {
+                throw new AssertionError("fatal");
+            }
+            seen.add(value);
+        });
+
+        CompletableFuture<Void> failed = root.updateAsync(2);
+        assertThatThrownBy(scheduler::runUntilIdle).isInstanceOf(AssertionError.class);
+        assertThat(failed).isCompletedExceptionally();
+
+        CompletableFuture<Void> next = root.updateAsync(3);
+        scheduler.runUntilIdle();
+        assertThat(next).isCompleted();
+        assertThat(seen).containsExactly(1, 3);
+    }
+
+    @Test
+    public void testUpdateAsync_discardsOldestOnOverflow() {
+        SettableRefreshable<Integer> root = Refreshable.builder(1)
+                .executor(scheduler, 2, RefreshableBuilder.OverflowPolicy.DISCARD_OLDEST)
+                .build();
+        List<Integer> seen = new CopyOnWriteArrayList<>();
+        root.subscribe(seen::add);
+
+        CompletableFuture<Void> discarded = root.updateAsync(2);
+        CompletableFuture<Void> second = root.updateAsync(3);
+        CompletableFuture<Void> third = root.updateAsync(4);
+        assertThat(discarded).isCancelled();
+
+        scheduler.runUntilIdle();
+        assertThat(second).isCompleted();
+        assertThat(third).isCompleted();
+        assertThat(seen).containsExactly(1, 3, 4);
+    }
+
     @Test
     public void testSubscribeToChildCanBeFreed() {
         Supplier<SettableRefreshable<String>> setup = () -> {
@@ -371,6 +673,762 @@ public final class RefreshableTest {
         scheduler.tick(1, TimeUnit.MINUTES);
     }
 
+    @Test
+    public void testCombine_recomputedOncePerUpdate() {
+        SettableRefreshable<Integer> root = Refreshable.create(1);
+        Refreshable<Integer> plusOne = root.map(i -> i + 1);
+        Refreshable<Integer> timesTwo = root.map(i -> i * 2).map(i -> i);
+        AtomicInteger calls = new AtomicInteger();
+        Refreshable<String> combined = Refreshable.combine(plusOne, timesTwo, (left, right) -> {
+            calls.incrementAndGet();
+            return left + "/" + right;
+        });
+        List<String> seen = new CopyOnWriteArrayList<>();
+        combined.subscribe(seen::add);
+
+        root.update(5);
+        assertThat(calls).hasValue(2);
+        assertThat(seen).containsExactly("2/2", "6/10");
+    }
+
+    @Test
+    public void testCombine_unchangedResultIsNotPropagated() {
+        SettableRefreshable<Integer> first = Refreshable.create(1);
+        SettableRefreshable<Integer> second = Refreshable.create(2);
+        Refreshable<Integer> max = Refreshable.combine(List.of(first, second, Refreshable.only(3)), Collections::max);
+        List<Integer> seen = new CopyOnWriteArrayList<>();
+        max.subscribe(seen::add);
+
+        first.update(2);
+        second.update(1);
+        assertThat(seen).containsExactly(3);
+        second.update(5);
+        assertThat(seen).containsExactly(3, 5);
+    }
+
+    @Test
+    public void testCombine_constants() {
+        Refreshable<Integer> combined = Refreshable.combine(Refreshable.only(1), Refreshable.only(2), Integer::sum);
+        assertThat(combined).isInstanceOf(ImmutableRefreshable.class);
+        assertThat(combined.current()).isEqualTo(3);
+    }
+
+    @Test
+    public void testCombine_subscribersAreNotCollected() {
+        SettableRefreshable<Integer> first = Refreshable.create(1);
+        SettableRefreshable<Integer> second = Refreshable.create(2);
+        List<Integer> seen = new CopyOnWriteArrayList<>();
+        Refreshable.combine(first, second, Integer::sum).subscribe(seen::add);
+        triggerGarbageCollection();
+
+        first.update(5);
+        assertThat(seen).containsExactly(3, 7);
+    }
+
+    @Test
+    public void testCombine_unreferencedResultIsCollected() {
+        DefaultRefreshable<Integer> root = new DefaultRefreshable<>(1);
+        Refreshable<Integer> mapped = root.map(i -> i * 2);
+        WeakReference<Refreshable<Integer>> combined =
+                new WeakReference<>(Refreshable.combine(root, mapped, Integer::sum));
+        assertThat(root.subscribers()).isEqualTo(2);
+
+        Awaitility.waitAtMost(Duration.ofSeconds(3)).untilAsserted(() -> {
+            System.gc();
+            assertThat(combined.get()).isNull();
+            assertThat(root.subscribers()).isOne();
+        });
+    }
+
+    @Test
+    public void testEquivalence_identity() {
+        SettableRefreshable<Config> root = Refreshable.builder(CONFIG).equivalence(Equivalence.identity()).build();
+        root.subscribe(consumer);
+        verify(consumer).accept(CONFIG);
+
+        root.update(CONFIG);
+        root.update(Config.of("prop"));
+        verify(consumer, times(2)).accept(CONFIG);
+        verifyNoMoreInteractions(consumer);
+    }
+
+    @Test
+    public void testEquivalence_mapOnKey() {
+        SettableRefreshable<Integer> root = Refreshable.create(1);
+        Refreshable<Config> mapped =
+                root.map(i -> Config.of(i % 2 == 0 ? "even" : "odd"), Equivalence.onKey(Config::property));
+        mapped.subscribe(consumer);
+
+        root.update(3);
+        root.update(4);
+        verify(consumer).accept(Config.of("odd"));
+        verify(consumer).accept(Config.of("even"));
+        verifyNoMoreInteractions(consumer);
+    }
+
+    @Test
+    public void testEquivalence_alwaysPropagate() {
+        SettableRefreshable<Integer> root = Refreshable.create(1);
+        List<Integer> seen = new CopyOnWriteArrayList<>();
+        root.map(i -> i * 2, Equivalence.alwaysPropagate()).subscribe(seen::add);
+
+        root.update(2);
+        root.update(2);
+        root.update(3);
+        assertThat(seen).containsExactly(2, 4, 6);
+    }
+
+    @Test
+    public void testEquivalence_fingerprint() {
+        AtomicInteger fingerprints = new AtomicInteger();
+        FingerprintEquivalence<Config> equivalence = Equivalence.fingerprint(config -> {
+            fingerprints.incrementAndGet();
+            return (long) config.property().hashCode();
+        });
+        SettableRefreshable<Config> root = Refreshable.builder(CONFIG).equivalence(equivalence).build();
+        root.subscribe(consumer);
+
+        root.update(UPDATED_CONFIG);
+        root.update(Config.of("newProp"));
+        root.update(CONFIG);
+        verify(consumer, times(2)).accept(CONFIG);
+        verify(consumer).accept(UPDATED_CONFIG);
+        verifyNoMoreInteractions(consumer);
+        assertThat(equivalence.hits()).isEqualTo(2);
+        assertThat(equivalence.misses()).isOne();
+        // the fingerprint of the stored value is only computed once
+        assertThat(fingerprints).hasValue(4);
+    }
+
+    @Test
+    public void testEquivalence_fingerprintWithoutEqualsDropsCollidingUpdates() {
+        Config colliding = Config.of("colliding");
+        Function<Config, Object> constant = _config -> 0L;
+        FingerprintEquivalence<Config> withoutEquals = Equivalence.fingerprintWithoutEquals(constant);
+        SettableRefreshable<Config> unverified = Refreshable.builder(CONFIG).equivalence(withoutEquals).build();
+        unverified.update(colliding);
+        assertThat(unverified.current()).isSameAs(CONFIG);
+        assertThat(withoutEquals.hits()).isOne();
+        assertThat(withoutEquals.misses()).isZero();
+
+        FingerprintEquivalence<Config> verifying = Equivalence.fingerprint(constant);
+        SettableRefreshable<Config> verified = Refreshable.builder(CONFIG).equivalence(verifying).build();
+        verified.update(colliding);
+        verified.update(Config.of("colliding"));
+        assertThat(verified.current()).isSameAs(colliding);
+        assertThat(verifying.hits()).isZero();
+        assertThat(verifying.misses()).isEqualTo(2);
+    }
+
+    @Test
+    public void testParallel_childrenUpdatedBeforeSubscribers() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            SettableRefreshable<Integer> root = Refreshable.builder(0).parallel(pool).build();
+            List<Refreshable<Integer>> children = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                int offset = i;
+                children.add(root.map(value -> value + offset));
+            }
+            List<Integer> inconsistent = new CopyOnWriteArrayList<>();
+            for (int i = 0; i < children.size(); i += 100) {
+                Refreshable<Integer> child = children.get(i);
+                int offset = i;
+                root.subscribe(value -> {
+                    if (child.current() != value + offset) {
+                        inconsistent.add(offset);
+                    }
+                });
+            }
+
+            for (int i = 1; i <= 10; i++) {
+                root.update(i);
+            }
+            assertThat(inconsistent).isEmpty();
+            assertThat(children.get(999).current()).isEqualTo(1009);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testParallel_subscribersMayRegisterWithTree() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            SettableRefreshable<Integer> root = Refreshable.builder(0).parallel(pool).build();
+            List<Refreshable<Integer>> registered = new CopyOnWriteArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                Refreshable<Integer> child = root.map(value -> value + 1);
+                child.subscribe(value -> {
+                    if (value > 1) {
+                        registered.add(root.map(rootValue -> rootValue * 2));
+                        root.subscribe(_rootValue -> {});
+                    }
+                });
+            }
+
+            root.update(1);
+            assertThat(registered).hasSize(10).allSatisfy(mapped -> assertThat(mapped.current()).isEqualTo(2));
+            root.update(2);
+            assertThat(registered).hasSize(20).allSatisfy(mapped -> assertThat(mapped.current()).isEqualTo(4));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testSubscriberExecutor_notifiesInOrderWithoutBlockingUpdates() {
+        SettableRefreshable<Integer> root = Refreshable.builder(0).subscriberExecutor(scheduler, false).build();
+        List<Integer> seen = new CopyOnWriteArrayList<>();
+        root.subscribe(seen::add);
+        assertThat(seen).containsExactly(0);
+
+        root.update(1);
+        root.update(2);
+        assertThat(seen).containsExactly(0);
+        scheduler.runUntilIdle();
+        assertThat(seen).containsExactly(0, 1, 2);
+    }
+
+    @Test
+    public void testSubscriberExecutor_awaitSubscribers() {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            SettableRefreshable<Integer> root = Refreshable.builder(0).subscriberExecutor(executor, true).build();
+            List<Integer> seen = new CopyOnWriteArrayList<>();
+            root.subscribe(value -> {
+                Uninterruptibles.sleepUninterruptibly(10, TimeUnit.MILLISECONDS);
+                seen.add(value);
+            });
+
+            root.update(1);
+            root.update(2);
+            assertThat(seen).containsExactly(0, 1, 2);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testVirtualThreadSubscribers() {
+        assumeTrue(Runtime.version().feature() >= 21, "virtual threads require Java 21");
+        SettableRefreshable<Integer> root = Refreshable.builder(0).virtualThreadSubscribers(true).build();
+        List<String> threads = new CopyOnWriteArrayList<>();
+        root.subscribe(_value -> threads.add(Thread.currentThread().toString()));
+
+        root.update(1);
+        assertThat(threads).hasSize(2);
+        assertThat(threads.get(1)).startsWith("VirtualThread");
+    }
+
+    @Test
+    public void testSubscribeOnExecutor_deliversEveryValueInOrder() {
+        SettableRefreshable<Integer> root = Refreshable.create(0);
+        List<Integer> seen = new ArrayList<>();
+        Disposable subscription = root.subscribe(seen::add, scheduler);
+
+        root.update(1);
+        root.update(2);
+        root.update(3);
+        assertThat(seen).containsExactly(0);
+
+        scheduler.runUntilIdle();
+        assertThat(seen).containsExactly(0, 1, 2, 3);
+
+        root.update(4);
+        subscription.dispose();
+        scheduler.runUntilIdle();
+        assertThat(seen).containsExactly(0, 1, 2, 3);
+    }
+
+    @Test
+    public void testSubscribeLatest_deliversOnlyNewestPendingValue() {
+        SettableRefreshable<Integer> root = Refreshable.create(0);
+        List<Integer> seen = new ArrayList<>();
+        root.subscribeLatest(seen::add, scheduler);
+
+        root.update(1);
+        root.update(2);
+        root.update(3);
+        assertThat(seen).containsExactly(0);
+
+        scheduler.runUntilIdle();
+        assertThat(seen).containsExactly(0, 3);
+
+        root.update(4);
+        scheduler.runUntilIdle();
+        assertThat(seen).containsExactly(0, 3, 4);
+    }
+
+    @Test
+    public void testUpdateAndGet_concurrentUpdatesAreNotLost() throws Exception {
+        SettableRefreshable<Integer> root = Refreshable.create(0);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<CompletableFuture<Void>> writers = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                writers.add(CompletableFuture.runAsync(
+                        () -> {
+                            for (int j = 0; j < 1000; j++) {
+                                root.updateAndGet(value -> value + 1);
+                            }
+                        },
+                        executor));
+            }
+            CompletableFuture.allOf(writers.toArray(new CompletableFuture<?>[0])).get();
+        } finally {
+            executor.shutdown();
+        }
+        assertThat(root.current()).isEqualTo(4000);
+
+        Integer current = root.current();
+        assertThat(root.compareAndUpdate(1, 2)).isFalse();
+        assertThat(root.compareAndUpdate(current, 2)).isTrue();
+        assertThat(root.current()).isEqualTo(2);
+    }
+
+    @Test
+    public void testCompareAndUpdate_defaultDoesNotHoldMonitorOfRefreshable() throws Exception {
+        SettableRefreshable<Integer> delegate = Refreshable.create(1);
+        SettableRefreshable<Integer> external = new SettableRefreshable<>() {
+            @Override
+            public Integer current() {
+                return delegate.current();
+            }
+
+            @Override
+            public void update(Integer value) {
+                delegate.update(value);
+            }
+
+            @Override
+            public Disposable subscribe(Consumer<? super Integer> consumer) {
+                return delegate.subscribe(consumer);
+            }
+
+            @Override
+            public <R> Refreshable<R> map(Function<? super Integer, R> function) {
+                return delegate.map(function);
+            }
+        };
+        synchronized (external) {
+            CompletableFuture<Boolean> updated = CompletableFuture.supplyAsync(() -> external.compareAndUpdate(1, 2));
+            assertThat(updated.get(5, TimeUnit.SECONDS)).isTrue();
+        }
+        assertThat(external.current()).isEqualTo(2);
+    }
+
+    @Test
+    public void testMonotonicVersion_rejectsOutOfOrderUpdates() {
+        SettableRefreshable<Integer> root =
+                Refreshable.builder(1).monotonicVersion(Integer::longValue).build();
+        List<Integer> seen = new ArrayList<>();
+        root.subscribe(seen::add);
+
+        root.update(3);
+        root.update(2);
+        assertThat(root.compareAndUpdate(3, 1)).isFalse();
+        assertThat(root.updateAndGet(value -> value - 1)).isEqualTo(3);
+        root.update(4);
+        assertThat(seen).containsExactly(1, 3, 4);
+    }
+
+    @Test
+    public void testBatch_combinedRefreshableRecomputedOnceFromCommittedValues() {
+        SettableRefreshable<Integer> first = Refreshable.create(1);
+        SettableRefreshable<Integer> second = Refreshable.create(10);
+        AtomicInteger computations = new AtomicInteger();
+        Refreshable<Integer> sum = Refreshable.combine(first, second, (a, b) -> {
+            computations.incrementAndGet();
+            return a + b;
+        });
+        List<Integer> seen = new ArrayList<>();
+        sum.subscribe(seen::add);
+
+        Refreshable.batch(() -> {
+            first.update(2);
+            second.update(20);
+            assertThat(first.current()).isEqualTo(1);
+        });
+        assertThat(seen).containsExactly(11, 22);
+        assertThat(computations).hasValue(2);
+
+        assertThatThrownBy(() -> Refreshable.batch(() -> {
+                    first.update(3);
+                    throw new IllegalStateException();
+                }))
+                .isInstanceOf(IllegalStateException.class);
+        assertThat(first.current()).isEqualTo(2);
+        assertThat(seen).containsExactly(11, 22);
+    }
+
+    @Test
+    public void testVersion_incrementedOnlyWhenValueChanges() {
+        SettableRefreshable<Integer> root = Refreshable.create(1);
+        Refreshable<Integer> half = root.map(value -> value / 2);
+        Versioned<Integer> read = root.currentWithVersion();
+        assertThat(read.value()).isEqualTo(1);
+        assertThat(read.isStale(root)).isFalse();
+
+        root.update(1);
+        assertThat(root.version()).isEqualTo(read.version());
+        assertThat(root.currentWithVersion()).isSameAs(read);
+
+        root.update(2);
+        assertThat(read.isStale(root)).isTrue();
+        assertThat(root.currentWithVersion().value()).isEqualTo(2);
+        assertThat(half.version()).isEqualTo(1);
+
+        root.update(3);
+        assertThat(root.version()).isEqualTo(2);
+        assertThat(half.version()).isEqualTo(1);
+    }
+
+    @Test
+    public void testSnapshot_derivedValuesMatchRoot() throws Exception {
+        SettableRefreshable<Integer> root = Refreshable.create(0);
+        Refreshable<Integer> doubled = root.map(value -> value * 2);
+        Refreshable<Integer> quadrupled = doubled.map(value -> value * 2);
+        List<Refreshable<Integer>> refreshables = List.of(quadrupled, root, doubled);
+        CompletableFuture<Void> writer = CompletableFuture.runAsync(() -> {
+            for (int i = 1; i <= 10_000; i++) {
+                root.update(i);
+            }
+        });
+        while (!writer.isDone()) {
+            List<Integer> snapshot = Refreshable.snapshot(refreshables);
+            assertThat(snapshot.get(0)).isEqualTo(snapshot.get(1) * 4);
+            assertThat(snapshot.get(2)).isEqualTo(snapshot.get(1) * 2);
+        }
+        writer.get();
+        assertThat(Refreshable.snapshot(refreshables)).containsExactly(40_000, 10_000, 20_000);
+    }
+
+    @Test
+    public void testNextAsync_completesOnlyOnPropagatedChanges() throws Exception {
+        SettableRefreshable<Integer> root = Refreshable.create(1);
+        Versioned<Integer> initial = root.currentWithVersion();
+        assertThat(root.nextAsync(initial.version() - 1)).isCompletedWithValue(initial);
+
+        CompletableFuture<Versioned<Integer>> next = root.nextAsync(initial.version());
+        root.update(1);
+        assertThat(next).isNotDone();
+
+        root.update(2);
+        assertThat(next.get(5, TimeUnit.SECONDS).value()).isEqualTo(2);
+    }
+
+    @Test
+    public void testVersion_fallsBackForRefreshablesWhichDontTrackVersions() throws Exception {
+        SettableRefreshable<Config> delegate = Refreshable.create(CONFIG);
+        Refreshable<Config> unversioned = new Refreshable<>() {
+            @Override
+            public Config current() {
+                return delegate.current();
+            }
+
+            @Override
+            public Disposable subscribe(Consumer<? super Config> consumer) {
+                return delegate.subscribe(consumer);
+            }
+
+            @Override
+            public <R> Refreshable<R> map(Function<? super Config, R> function) {
+                return delegate.map(function);
+            }
+        };
+        Versioned<Config> read = unversioned.currentWithVersion();
+        assertThat(read.version()).isEqualTo(Versioned.UNVERSIONED);
+        assertThat(read.isStale(unversioned)).isFalse();
+
+        CompletableFuture<Versioned<Config>> next = unversioned.nextAsync(read.version());
+        assertThat(next).isNotDone();
+        delegate.update(UPDATED_CONFIG);
+        assertThat(read.isStale(unversioned)).isTrue();
+        assertThat(next.get(5, TimeUnit.SECONDS).value()).isEqualTo(UPDATED_CONFIG);
+    }
+
+    @Test
+    public void testAwaitNext_wakesWaitingThreads() throws Exception {
+        SettableRefreshable<Integer> root = Refreshable.create(0);
+        long version = root.version();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<CompletableFuture<Integer>> waiters = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                waiters.add(CompletableFuture.supplyAsync(
+                        () -> {
+                            try {
+                                return root.awaitNext(version).value();
+                            } catch (InterruptedException e) {
+                                throw new IllegalStateException(e);
+                            }
+                        },
+                        executor));
+            }
+            root.update(7);
+            for (CompletableFuture<Integer> waiter : waiters) {
+                assertThat(waiter.get(5, TimeUnit.SECONDS)).isEqualTo(7);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testFlowPublisher_conflatesToLatestValueOnDemand() {
+        SettableRefreshable<Integer> root = Refreshable.create(0);
+        List<Integer> received = new ArrayList<>();
+        AtomicReference<Flow.Subscription> subscription = new AtomicReference<>();
+        RefreshableFlow.publisher(root).subscribe(new Flow.Subscriber<Integer>() {
+            @Override
+            public void onSubscribe(Flow.Subscription value) {
+                subscription.set(value);
+            }
+
+            @Override
+            public void onNext(Integer item) {
+                received.add(item);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {}
+
+            @Override
+            public void onComplete() {}
+        });
+
+        root.update(1);
+        root.update(2);
+        assertThat(received).isEmpty();
+        subscription.get().request(2);
+        assertThat(received).containsExactly(2);
+        root.update(3);
+        assertThat(received).containsExactly(2, 3);
+
+        subscription.get().cancel();
+        root.update(4);
+        assertThat(received).containsExactly(2, 3);
+    }
+
+    @Test
+    public void testFlowSubscriber_updatesRefreshable() {
+        SettableRefreshable<Integer> source = Refreshable.create(1);
+        SettableRefreshable<Integer> sink = Refreshable.create(0);
+        RefreshableFlow.publisher(source.map(value -> value * 10)).subscribe(RefreshableFlow.subscriber(sink));
+        assertThat(sink.current()).isEqualTo(10);
+
+        source.update(2);
+        assertThat(sink.current()).isEqualTo(20);
+    }
+
+    @Test
+    public void testLazyMap_computedOnReadOncePerValue() {
+        SettableRefreshable<Integer> root = Refreshable.create(1);
+        AtomicInteger computations = new AtomicInteger();
+        Refreshable<Integer> lazy = root.lazyMap(value -> {
+            computations.incrementAndGet();
+            return value * 10;
+        });
+        root.update(2);
+        root.update(3);
+        assertThat(computations).hasValue(0);
+
+        assertThat(lazy.current()).isEqualTo(30);
+        assertThat(lazy.current()).isEqualTo(30);
+        assertThat(computations).hasValue(1);
+
+        List<Integer> seen = new ArrayList<>();
+        Disposable subscription = lazy.subscribe(seen::add);
+        root.update(4);
+        assertThat(seen).containsExactly(30, 40);
+        assertThat(computations).hasValue(2);
+
+        subscription.dispose();
+        root.update(5);
+        assertThat(computations).hasValue(2);
+        assertThat(lazy.current()).isEqualTo(50);
+    }
+
+    @Test
+    public void testMap_fusedChainStopsAtUnchangedIntermediateValues() {
+        SettableRefreshable<Integer> root = Refreshable.create(1);
+        AtomicInteger computations = new AtomicInteger();
+        Refreshable<Integer> tens = root.map(value -> value / 10);
+        Refreshable<String> leaf = tens.map(value -> value + 1).map(value -> {
+            computations.incrementAndGet();
+            return "v" + value;
+        });
+        List<String> seen = new ArrayList<>();
+        leaf.subscribe(seen::add);
+
+        root.update(5);
+        assertThat(computations).hasValue(1);
+        root.update(25);
+        assertThat(computations).hasValue(2);
+        assertThat(tens.current()).isEqualTo(2);
+        assertThat(seen).containsExactly("v1", "v3");
+    }
+
+    @Test
+    public void testMap_fusedIntermediateIsStillUpdatedOncePerUpdate() {
+        DefaultRefreshable<Integer> root = new DefaultRefreshable<>(1);
+        AtomicInteger computations = new AtomicInteger();
+        Refreshable<Integer> doubled = root.map(value -> {
+            computations.incrementAndGet();
+            return value * 2;
+        });
+        Refreshable<Integer> negated = doubled.map(value -> -value);
+        assertThat(root.subscribers()).isOne();
+
+        root.update(3);
+        assertThat(computations).hasValue(2);
+        assertThat(doubled.current()).isEqualTo(6);
+        assertThat(negated.current()).isEqualTo(-6);
+
+        List<Integer> seen = new ArrayList<>();
+        doubled.subscribe(seen::add);
+        root.update(4);
+        assertThat(computations).hasValue(3);
+        assertThat(seen).containsExactly(6, 8);
+        assertThat(negated.current()).isEqualTo(-8);
+    }
+
+    @Test
+    public void testMapByKey_sharesLiveChildPerKey() {
+        SettableRefreshable<Integer> root = Refreshable.create(1);
+        AtomicInteger computations = new AtomicInteger();
+        Function<Integer, Integer> doubled = value -> {
+            computations.incrementAndGet();
+            return value * 2;
+        };
+        Refreshable<Integer> first = root.map("doubled", doubled);
+        Refreshable<Integer> second = root.map("doubled", doubled);
+        assertThat(second).isSameAs(first);
+        assertThat(root.map("tripled", value -> value * 3)).isNotSameAs(first);
+
+        root.update(3);
+        assertThat(first.current()).isEqualTo(6);
+        assertThat(computations).hasValue(2);
+    }
+
+    @Test
+    public void testMap_groupedSiblingsKeepRegistrationOrderAndAreCollected() {
+        DefaultRefreshable<Integer> root = new DefaultRefreshable<>(0);
+        List<Refreshable<Integer>> siblings = new ArrayList<>();
+        List<Integer> notified = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            int offset = i;
+            Refreshable<Integer> sibling = root.map(value -> value + offset);
+            siblings.add(sibling);
+            if (offset % 10 == 0) {
+                sibling.subscribe(_value -> notified.add(offset));
+            }
+        }
+        assertThat(root.subscribers()).isEqualTo(100);
+
+        notified.clear();
+        root.update(1);
+        assertThat(notified).containsExactly(0, 10, 20, 30, 40, 50, 60, 70, 80, 90);
+        assertThat(siblings.get(99).current()).isEqualTo(100);
+
+        siblings.clear();
+        Awaitility.waitAtMost(Duration.ofSeconds(3)).untilAsserted(() -> {
+            triggerGarbageCollection();
+            // Updates prune the collected siblings, as only the siblings with subscribers are still reachable.
+            root.update(2);
+            assertThat(root.subscribers()).isEqualTo(10);
+        });
+        notified.clear();
+        root.update(3);
+        assertThat(notified).containsExactly(0, 10, 20, 30, 40, 50, 60, 70, 80, 90);
+    }
+
+    @Test
+    public void testMap_derivedRefreshablesAreCompact() {
+        VirtualMachine vm = VM.current();
+        assumeTrue(
+                vm.addressSize() == 4 && vm.classPointerSize() == 4 && vm.objectAlignment() == 8,
+                "sizes are measured with compressed oops and class pointers");
+        DefaultRefreshable<Integer> root = new DefaultRefreshable<>(0);
+        Function<Integer, Integer> function = value -> value + 1;
+        Consumer<Integer> subscriber = _value -> {};
+        long rootSize = GraphLayout.parseInstance(root, function, subscriber).totalSize();
+        List<Refreshable<Integer>> children = new ArrayList<>(1000);
+        for (int i = 0; i < 1000; i++) {
+            children.add(root.map(function));
+        }
+        LongSupplier sizePerChild = () ->
+                (GraphLayout.parseInstance(root, function, subscriber, children).totalSize() - rootSize) / 1000;
+        // Measured at 124, 139 and 244 bytes, where each child used to take up 376, 391 and 479 bytes as it allocated
+        // its own lock and subscriber sets.
+        assertThat(sizePerChild.getAsLong()).isLessThanOrEqualTo(128);
+
+        root.update(1);
+        assertThat(sizePerChild.getAsLong()).isLessThanOrEqualTo(144);
+
+        for (Refreshable<Integer> child : children) {
+            child.subscribe(subscriber);
+        }
+        assertThat(sizePerChild.getAsLong()).isLessThanOrEqualTo(256);
+    }
+
+    @Test
+    public void testSubscribe_registersWithinTreeWhilePropagating() {
+        SettableRefreshable<Integer> root = Refreshable.create(1);
+        Refreshable<Integer> doubled = root.map(value -> value * 2);
+        Refreshable<Integer> tripled = root.map(value -> value * 3);
+        List<Integer> seen = new ArrayList<>();
+        List<Refreshable<Integer>> registered = new ArrayList<>();
+        doubled.subscribe(value -> {
+            if (value == 4) {
+                // Runs while the propagation holds the lock of the tree, which registration shares.
+                registered.add(tripled.map(tripledValue -> tripledValue + value));
+                tripled.subscribe(seen::add);
+            }
+        });
+
+        root.update(2);
+        assertThat(seen).containsExactly(6);
+        assertThat(registered.get(0).current()).isEqualTo(10);
+
+        root.update(3);
+        assertThat(seen).containsExactly(6, 9);
+        assertThat(registered.get(0).current()).isEqualTo(13);
+    }
+
+    @Test
+    public void testMap_collectedChildrenArePrunedWithoutCleanerThread() {
+        DefaultRefreshable<Integer> root = new DefaultRefreshable<>(0);
+        Refreshable<Integer> kept = root.map(value -> value + 1);
+        for (int i = 0; i < 100; i++) {
+            root.map(value -> value * 2);
+        }
+        long prunedBefore = RefreshableMetrics.prunedDeadChildren();
+
+        // Mapping any refreshable drains the collected children, pruning them once they make up half of the children.
+        Awaitility.waitAtMost(Duration.ofSeconds(3)).untilAsserted(() -> {
+            triggerGarbageCollection();
+            Refreshable.create(0).map(value -> value);
+            assertThat(RefreshableMetrics.prunedDeadChildren() - prunedBefore).isGreaterThanOrEqualTo(100);
+        });
+        assertThat(root.subscribers()).isEqualTo(1);
+
+        // A single collected child is left pending, until the propagation finds it while updating its parent.
+        Refreshable<Integer> sibling = root.map(value -> value + 2);
+        WeakReference<Refreshable<Integer>> collected = new WeakReference<>(root.map(value -> value * 3));
+        Awaitility.waitAtMost(Duration.ofSeconds(3)).untilAsserted(() -> {
+            triggerGarbageCollection();
+            assertThat(collected.get()).isNull();
+        });
+        long prunedBeforeUpdate = RefreshableMetrics.prunedDeadChildren();
+        root.update(1);
+        assertThat(RefreshableMetrics.prunedDeadChildren() - prunedBeforeUpdate).isGreaterThanOrEqualTo(1);
+        assertThat(root.subscribers()).isEqualTo(2);
+        assertThat(kept.current()).isEqualTo(2);
+        assertThat(sibling.current()).isEqualTo(3);
+    }
+
     @Value.Immutable
     interface Config {
         String property();